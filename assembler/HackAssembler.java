@@ -0,0 +1,271 @@
+//Written by David Owen and Noah Barrall
+
+package assembler;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// Two-pass Hack assembler working on the assembly text as bytes, e.g.
+// straight from CodeWriter's buffer. The first pass strips white space
+// and comments, copies each instruction into one array and gives each
+// label its ROM address. The second encodes the instructions, giving
+// new variables RAM addresses from 16 up. The machine code comes back
+// as one short per instruction.
+public class HackAssembler {
+
+    private static final int FIRST_VARIABLE = 16;
+
+    private static final Map<String, Integer> COMP = new HashMap<>();
+    private static final Map<String, Integer> JUMP = new HashMap<>();
+
+    static {
+        String[][] comps = {
+            {"0", "101010"}, {"1", "111111"}, {"-1", "111010"},
+            {"D", "001100"}, {"A", "110000"}, {"!D", "001101"},
+            {"!A", "110001"}, {"-D", "001111"}, {"-A", "110011"},
+            {"D+1", "011111"}, {"A+1", "110111"}, {"D-1", "001110"},
+            {"A-1", "110010"}, {"D+A", "000010"}, {"A+D", "000010"},
+            {"D-A", "010011"}, {"A-D", "000111"}, {"D&A", "000000"},
+            {"A&D", "000000"}, {"D|A", "010101"}, {"A|D", "010101"},
+        };
+
+        for (String[] comp : comps) {
+            int bits = Integer.parseInt(comp[1], 2) << 6;
+            COMP.put(comp[0], bits);
+            if (comp[0].contains("A")) {
+                COMP.put(comp[0].replace('A', 'M'), bits | 1 << 12);
+            }
+        }
+
+        String[] jumps = {"JGT", "JEQ", "JGE", "JLT", "JNE", "JLE", "JMP"};
+        for (int i = 0; i < jumps.length; i++) JUMP.put(jumps[i], i + 1);
+    }
+
+    private final SymbolTable symbols = SymbolTable.predefined();
+
+    // Encoded C-instructions by their text. Programs use only a few
+    // dozen different ones, so each is decoded once.
+    private final SymbolTable cInstructions = new SymbolTable();
+
+    // Instructions after the first pass, back to back.
+    private byte[] text;
+    private int[] starts;  // Instruction i is text[starts[i]..starts[i + 1]).
+    private int count;
+
+    public static short[] assemble(byte[] asm) {
+        return new HackAssembler().run(asm);
+    }
+
+    private short[] run(byte[] asm) {
+        text = new byte[asm.length];
+        starts = new int[1024];
+        collect(asm);
+
+        short[] code = new short[count];
+        int nextVariable = FIRST_VARIABLE;
+
+        for (int i = 0; i < count; i++) {
+            int start = starts[i];
+            int end = starts[i + 1];
+
+            if (text[start] != '@') {
+                code[i] = (short) encodeC(start, end);
+            } else if (isDigit(text[start + 1])) {
+                code[i] = (short) number(start + 1, end);
+            } else {
+                int address = symbols.get(text, start + 1, end);
+
+                if (address == SymbolTable.NOT_FOUND) {
+                    address = nextVariable++;
+                    symbols.put(text, start + 1, end, address);
+                }
+
+                // Past this an A-instruction would read as a C one.
+                if (address > 32767) {
+                    throw new IllegalArgumentException("Address out of " +
+                        "range: " + string(start, end) + " = " + address);
+                }
+
+                code[i] = (short) address;
+            }
+        }
+
+        return code;
+    }
+
+    // First pass.
+    private void collect(byte[] asm) {
+        int length = 0;
+        int position = 0;
+
+        while (position < asm.length) {
+            int lineStart = length;
+
+            for (; position < asm.length && asm[position] != '\n';
+                position++) {
+                byte b = asm[position];
+
+                if (b == '/' && position + 1 < asm.length &&
+                    asm[position + 1] == '/') {
+                    while (position < asm.length && asm[position] != '\n') {
+                        position++;
+                    }
+                    break;
+                }
+
+                if (b > ' ') text[length++] = b;
+            }
+
+            position++;
+
+            if (length == lineStart) continue;
+
+            if (text[lineStart] == '(') {
+                if (text[length - 1] != ')') {
+                    throw new IllegalArgumentException("Bad label: " +
+                        string(lineStart, length));
+                }
+                symbols.put(text, lineStart + 1, length - 1, count);
+                length = lineStart;
+                continue;
+            }
+
+            if (count + 1 >= starts.length) {
+                starts = Arrays.copyOf(starts, starts.length * 2);
+            }
+            starts[count++] = lineStart;
+        }
+
+        starts[count] = length;
+    }
+
+    private int encodeC(int start, int end) {
+        int code = cInstructions.get(text, start, end);
+        if (code != SymbolTable.NOT_FOUND) return code;
+
+        String instruction = string(start, end);
+        int equals = instruction.indexOf('=');
+        int semicolon = instruction.indexOf(';');
+        String dest = equals < 0 ? "" : instruction.substring(0, equals);
+        String comp = instruction.substring(equals + 1,
+            semicolon < 0 ? instruction.length() : semicolon);
+        Integer compBits = COMP.get(comp);
+        Integer jumpBits = semicolon < 0 ? Integer.valueOf(0) :
+            JUMP.get(instruction.substring(semicolon + 1));
+
+        if (compBits == null || jumpBits == null) {
+            throw new IllegalArgumentException("Bad instruction: " +
+                instruction);
+        }
+
+        code = 0b111 << 13 | compBits | jumpBits;
+
+        for (char register : dest.toCharArray()) {
+            switch (register) {
+                case 'A': code |= 0b100 << 3; break;
+                case 'D': code |= 0b010 << 3; break;
+                case 'M': code |= 0b001 << 3; break;
+                default:
+                    throw new IllegalArgumentException("Bad instruction: " +
+                        instruction);
+            }
+        }
+
+        cInstructions.put(text, start, end, code);
+        return code;
+    }
+
+    private int number(int start, int end) {
+        int value = 0;
+
+        for (int i = start; i < end; i++) {
+            if (!isDigit(text[i]) || value > 32767) {
+                throw new IllegalArgumentException("Bad address: " +
+                    string(start - 1, end));
+            }
+            value = value * 10 + text[i] - '0';
+        }
+
+        if (value > 32767) {
+            throw new IllegalArgumentException("Bad address: " +
+                string(start - 1, end));
+        }
+
+        return value;
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    private String string(int start, int end) {
+        return new String(text, start, end - start,
+            StandardCharsets.US_ASCII);
+    }
+
+    // The .hack text format, 16 0s and 1s per line.
+    public static void writeText(short[] code, OutputStream out)
+        throws IOException {
+        byte[] line = new byte[17];
+        line[16] = '\n';
+
+        for (short word : code) {
+            for (int bit = 0; bit < 16; bit++) {
+                line[bit] = (byte) ((word >> (15 - bit) & 1) + '0');
+            }
+            out.write(line);
+        }
+    }
+
+    // Two bytes per instruction, high byte first.
+    public static void writeBinary(short[] code, OutputStream out)
+        throws IOException {
+        byte[] bytes = new byte[code.length * 2];
+
+        for (int i = 0; i < code.length; i++) {
+            bytes[2 * i] = (byte) (code[i] >> 8);
+            bytes[2 * i + 1] = (byte) code[i];
+        }
+
+        out.write(bytes);
+    }
+
+    // Writes code to filename, as text unless binary.
+    public static void write(short[] code, String filename, boolean binary)
+        throws IOException {
+        try (OutputStream out = new BufferedOutputStream(
+            new FileOutputStream(filename), 1 << 16)) {
+            if (binary) {
+                writeBinary(code, out);
+            } else {
+                writeText(code, out);
+            }
+        }
+    }
+
+    // Assembles Prog.asm into Prog.hack, or Prog.bin with --binary.
+    public static void main(String[] args) throws IOException {
+        String source = null;
+        boolean binary = false;
+
+        for (String arg : args) {
+            if (arg.equals("--binary")) {
+                binary = true;
+            } else {
+                source = arg;
+            }
+        }
+
+        short[] code = assemble(Files.readAllBytes(Path.of(source)));
+        write(code, source.replaceAll("\\.asm$", binary ? ".bin" : ".hack"),
+            binary);
+    }
+}
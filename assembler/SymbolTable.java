@@ -0,0 +1,114 @@
+//Written by David Owen and Noah Barrall
+
+package assembler;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Symbol name to number, with open addressing (linear probing) in
+// plain arrays. Names are looked up straight from a range of the
+// assembly text, so nothing is allocated unless a name is new.
+public class SymbolTable {
+
+    public static final int NOT_FOUND = -1;
+
+    private byte[][] keys;
+    private int[] hashes;
+    private int[] values;
+    private int size;
+
+    public SymbolTable() {
+        keys = new byte[64][];
+        hashes = new int[64];
+        values = new int[64];
+    }
+
+    // The Hack predefined symbols.
+    public static SymbolTable predefined() {
+        SymbolTable table = new SymbolTable();
+        table.put("SP", 0);
+        table.put("LCL", 1);
+        table.put("ARG", 2);
+        table.put("THIS", 3);
+        table.put("THAT", 4);
+
+        for (int i = 0; i < 16; i++) {
+            table.put("R" + i, i);
+        }
+
+        table.put("SCREEN", 16384);
+        table.put("KBD", 24576);
+        return table;
+    }
+
+    private static int hash(byte[] text, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) hash = 31 * hash + text[i];
+        return hash ^ (hash >>> 16);
+    }
+
+    // Slot holding text[start..end), or the empty slot where it goes.
+    private int slot(byte[] text, int start, int end, int hash) {
+        int mask = keys.length - 1;
+        int slot = hash & mask;
+
+        while (keys[slot] != null) {
+            if (hashes[slot] == hash && Arrays.equals(keys[slot], 0,
+                keys[slot].length, text, start, end)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        return slot;
+    }
+
+    public int get(byte[] text, int start, int end) {
+        int slot = slot(text, start, end, hash(text, start, end));
+        return keys[slot] == null ? NOT_FOUND : values[slot];
+    }
+
+    public int get(String symbol) {
+        byte[] text = symbol.getBytes(StandardCharsets.US_ASCII);
+        return get(text, 0, text.length);
+    }
+
+    public void put(byte[] text, int start, int end, int value) {
+        int hash = hash(text, start, end);
+        int slot = slot(text, start, end, hash);
+
+        values[slot] = value;
+
+        if (keys[slot] == null) {
+            keys[slot] = Arrays.copyOfRange(text, start, end);
+            hashes[slot] = hash;
+            if (++size * 2 > keys.length) grow();
+        }
+    }
+
+    public void put(String symbol, int value) {
+        byte[] text = symbol.getBytes(StandardCharsets.US_ASCII);
+        put(text, 0, text.length, value);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void grow() {
+        byte[][] oldKeys = keys;
+        int[] oldHashes = hashes;
+        int[] oldValues = values;
+        keys = new byte[oldKeys.length * 2][];
+        hashes = new int[keys.length];
+        values = new int[keys.length];
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == null) continue;
+            int slot = slot(oldKeys[i], 0, oldKeys[i].length, oldHashes[i]);
+            keys[slot] = oldKeys[i];
+            hashes[slot] = oldHashes[i];
+            values[slot] = oldValues[i];
+        }
+    }
+}
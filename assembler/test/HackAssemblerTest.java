@@ -0,0 +1,65 @@
+package assembler.test;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import assembler.HackAssembler;
+import assembler.SymbolTable;
+
+public class HackAssemblerTest {
+
+    private static short[] assemble(String asm) {
+        return HackAssembler.assemble(asm.getBytes());
+    }
+
+    @Test
+    public void testInstructions() {
+        short[] code = assemble("    @2\n    D=A\n    AM=M+1\n" +
+                "    M=M+D\n    0;JMP\n    D;JLE\n");
+        assertArrayEquals(new short[] {2, (short) 0b1110110000010000,
+                (short) 0b1111110111101000, (short) 0b1111000010001000,
+                (short) 0b1110101010000111, (short) 0b1110001100000110},
+                code);
+    }
+
+    @Test
+    public void testSymbols() {
+        short[] code = assemble("// comment\n(LOOP)\n  @ SP // spaces\n" +
+                "@x\n@y\n@x\n(END)\n@END\n@LOOP\n@SCREEN\n@R13\n");
+        assertArrayEquals(new short[] {0, 16, 17, 16, 4, 0, 16384, 13},
+                code);
+    }
+
+    @Test
+    public void testBadInstruction() {
+        assertThrows(IllegalArgumentException.class,
+                () -> assemble("D=X\n"));
+        assertThrows(IllegalArgumentException.class,
+                () -> assemble("@40000\n"));
+    }
+
+    @Test
+    public void testWrite() throws IOException {
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        HackAssembler.writeText(new short[] {5, -1}, text);
+        assertEquals("0000000000000101\n1111111111111111\n",
+                text.toString());
+
+        ByteArrayOutputStream binary = new ByteArrayOutputStream();
+        HackAssembler.writeBinary(new short[] {0x1234}, binary);
+        assertArrayEquals(new byte[] {0x12, 0x34}, binary.toByteArray());
+    }
+
+    @Test
+    public void testSymbolTableGrows() {
+        SymbolTable table = new SymbolTable();
+        for (int i = 0; i < 1000; i++) table.put("s" + i, i);
+
+        assertEquals(1000, table.size());
+        for (int i = 0; i < 1000; i++) assertEquals(i, table.get("s" + i));
+        assertEquals(SymbolTable.NOT_FOUND, table.get("t"));
+    }
+}
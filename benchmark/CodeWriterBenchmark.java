@@ -0,0 +1,84 @@
+//Written by David Owen and Noah Barrall
+
+package benchmark;
+
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import vmtranslator.AsmWriter;
+import vmtranslator.CodeWriter;
+import vmtranslator.CommandType;
+import vmtranslator.TranslatorOptions;
+
+// Inputs.count(size) calls of one CodeWriter method. The assembly goes
+// to a channel that drops it, so only the writer itself is measured.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CodeWriterBenchmark {
+
+    private static final String[] SEGMENTS = {
+        "local", "argument", "this", "that", "constant", "static",
+        "temp", "pointer",
+    };
+
+    private static final String[] ARITHMETIC = {
+        "add", "sub", "neg", "eq", "gt", "lt", "and", "or", "not",
+    };
+
+    @Param({"small", "medium", "huge"})
+    public String size;
+
+    private int count;
+    private CodeWriter writer;
+
+    @Setup
+    public void setUp() {
+        count = Inputs.count(size);
+    }
+
+    // One writer per iteration. Making one per invocation would cost
+    // more than writing a small input, and JMH's own per-invocation
+    // overhead would swamp the score.
+    @Setup(Level.Iteration)
+    public void newWriter() {
+        writer = new CodeWriter(new AsmWriter(Channels.newChannel(
+            OutputStream.nullOutputStream())), "Main",
+            new TranslatorOptions());
+    }
+
+    @TearDown(Level.Iteration)
+    public void closeWriter() {
+        writer.close();
+    }
+
+    @Benchmark
+    public void writePushPop() {
+        for (int i = 0; i < count; i++) {
+            String segment = SEGMENTS[i % SEGMENTS.length];
+            CommandType type = (i % 2 == 0 || segment.equals("constant")) ?
+                CommandType.C_PUSH : CommandType.C_POP;
+            writer.writePushPop(type, segment, i % 2);
+        }
+    }
+
+    @Benchmark
+    public void writeCall() {
+        for (int i = 0; i < count; i++) {
+            writer.writeCall("Math.multiply", 2);
+        }
+    }
+
+    @Benchmark
+    public void writeArithmetic() {
+        for (int i = 0; i < count; i++) {
+            writer.writeArithmetic(ARITHMETIC[i % ARITHMETIC.length]);
+        }
+    }
+}
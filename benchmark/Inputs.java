@@ -0,0 +1,82 @@
+//Written by David Owen and Noah Barrall
+
+package benchmark;
+
+// Generated VM and Jack source for the benchmarks, in three sizes.
+// The programs don't need to make sense, only to look like what the
+// Jack compiler and the book's test programs give the tools.
+//
+// The benchmarks need JMH (jmh-core, with jmh-generator-annprocess as
+// an annotation processor when compiling). Run them with the GC
+// profiler for allocation rates, e.g.
+//   java -cp <classes>:<jmh jars> org.openjdk.jmh.Main -prof gc
+// and add a benchmark name (e.g. ParserBenchmark) to run only that one.
+public class Inputs {
+
+    // Commands (or Jack statements) in each size.
+    public static int count(String size) {
+        switch (size) {
+            case "small": return 100;
+            case "medium": return 10_000;
+            case "huge": return 1_000_000;
+            default: throw new IllegalArgumentException(size);
+        }
+    }
+
+    private static final String[] VM_LINES = {
+        "push argument 0",
+        "push local 1",
+        "add",
+        "pop local 1",
+        "push constant 17",
+        "push this 2",
+        "lt",
+        "if-goto LOOP",
+        "push static 3",
+        "call Math.multiply 2",
+        "pop that 0",
+        "// comment",
+        "push pointer 1",
+        "not",
+        "goto END",
+        "return",
+    };
+
+    public static String vmProgram(String size) {
+        StringBuilder text = new StringBuilder();
+        int lines = count(size);
+
+        for (int i = 0; i < lines; i++) {
+            if (i % 64 == 0) {
+                text.append("function Main.f").append(i).append(" 2\n");
+            }
+            text.append(VM_LINES[i % VM_LINES.length]).append('\n');
+        }
+
+        return text.toString();
+    }
+
+    private static final String[] JACK_LINES = {
+        "let sum = sum + (a[i] * 2);",
+        "if (~(x < 10)) { do Output.printInt(x); }",
+        "while (i < length) { let i = i + 1; }",
+        "// comment",
+        "let s = \"hello, world\";",
+        "/** doc */ return this;",
+    };
+
+    public static String jackProgram(String size) {
+        StringBuilder text = new StringBuilder("class Main {\n");
+        int lines = count(size);
+
+        for (int i = 0; i < lines; i++) {
+            if (i % 64 == 0) {
+                if (i > 0) text.append("}\n");
+                text.append("function void f").append(i).append("() {\n");
+            }
+            text.append(JACK_LINES[i % JACK_LINES.length]).append('\n');
+        }
+
+        return text.append("}\n}\n").toString();
+    }
+}
@@ -0,0 +1,53 @@
+//Written by David Owen and Noah Barrall
+
+package benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import compiler.JackTokenizer;
+
+// One pass of JackTokenizer.advance over a whole class, read from a
+// file as the compiler does. (Given the source itself, the tokenizer
+// would first try to open it as a file name.)
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JackTokenizerBenchmark {
+
+    @Param({"small", "medium", "huge"})
+    public String size;
+
+    private Path file;
+
+    @Setup
+    public void setUp() throws IOException {
+        file = Files.createTempFile("JackTokenizerBenchmark", ".jack");
+        Files.writeString(file, Inputs.jackProgram(size));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.delete(file);
+    }
+
+    @Benchmark
+    public void advance(Blackhole blackhole) throws Exception {
+        JackTokenizer tokenizer = new JackTokenizer(file.toString());
+
+        while (tokenizer.hasMoreTokens()) {
+            tokenizer.advance();
+            blackhole.consume(tokenizer.tokenType());
+        }
+
+        tokenizer.close();
+    }
+}
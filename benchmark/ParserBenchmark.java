@@ -0,0 +1,69 @@
+//Written by David Owen and Noah Barrall
+
+package benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import vmtranslator.MappedParser;
+import vmtranslator.Parser;
+import vmtranslator.VmParser;
+
+// One pass of advance over a whole program, with Parser reading from
+// memory and MappedParser from a file (in the page cache after the
+// first pass). Per-command time is the score divided by
+// Inputs.count(size).
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParserBenchmark {
+
+    @Param({"small", "medium", "huge"})
+    public String size;
+
+    private byte[] program;
+    private Path file;
+
+    @Setup
+    public void setUp() throws IOException {
+        program = Inputs.vmProgram(size).getBytes(StandardCharsets.UTF_8);
+        file = Files.createTempFile("ParserBenchmark", ".vm");
+        Files.write(file, program);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.delete(file);
+    }
+
+    // Parser(String) would try to open the whole program as a file
+    // name first, so the bytes go in as a stream.
+    @Benchmark
+    public void advance(Blackhole blackhole) {
+        run(new Parser(new ByteArrayInputStream(program)), blackhole);
+    }
+
+    @Benchmark
+    public void advanceMapped(Blackhole blackhole) throws IOException {
+        run(new MappedParser(file.toString()), blackhole);
+    }
+
+    private static void run(VmParser parser, Blackhole blackhole) {
+        while (parser.hasMoreLines()) {
+            parser.advance();
+            blackhole.consume(parser.commandType());
+        }
+
+        parser.close();
+    }
+}
@@ -0,0 +1,263 @@
+//Written by David Owen and Noah Barrall
+
+package emulator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Just enough of a class file writer for HackJit: one class with a
+// no-argument constructor and one method, built from raw JVM
+// opcodes. The class file is version 49, which the JVM still accepts
+// and checks with the old type-inferring verifier, so no stack map
+// frames have to be worked out for the branches.
+class Bytecode {
+
+    static final int ICONST_M1 = 0x02, ICONST_0 = 0x03, ICONST_1 = 0x04;
+    static final int BIPUSH = 0x10, SIPUSH = 0x11;
+    static final int ILOAD = 0x15, LLOAD = 0x16, ALOAD = 0x19;
+    static final int ALOAD_0 = 0x2a;
+    static final int IALOAD = 0x2e, SALOAD = 0x35;
+    static final int ISTORE = 0x36, LSTORE = 0x37;
+    static final int IASTORE = 0x4f, SASTORE = 0x56;
+    static final int IADD = 0x60, LADD = 0x61, ISUB = 0x64, INEG = 0x74;
+    static final int IAND = 0x7e, IOR = 0x80, IXOR = 0x82;
+    static final int I2L = 0x85, I2S = 0x93, LCMP = 0x94;
+    static final int IFEQ = 0x99, IFNE = 0x9a, IFLT = 0x9b, IFGE = 0x9c,
+        IFGT = 0x9d, IFLE = 0x9e, IF_ICMPNE = 0xa0, GOTO = 0xa7;
+    static final int TABLESWITCH = 0xaa, LRETURN = 0xad, RETURN = 0xb1;
+    static final int INVOKESPECIAL = 0xb7, INVOKESTATIC = 0xb8;
+
+    // Where a branch goes; bound to a code offset once it's known.
+    static class Label {
+        int offset = -1;
+    }
+
+    // A branch offset to fill in: the instruction's offset, where the
+    // offset goes, and whether it takes 4 bytes (tableswitch) or 2.
+    private record Fixup(int instruction, int at, Label label,
+        boolean wide) {}
+
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private final DataOutputStream poolOut = new DataOutputStream(pool);
+    private final Map<String, Integer> constants = new HashMap<>();
+    private int poolCount = 1;
+
+    private byte[] code = new byte[4096];
+    private int length;
+    private final List<Fixup> fixups = new ArrayList<>();
+
+    // Constant pool entries, each added once.
+
+    private int constant(String key, int tag, int first, int second,
+        String utf8) {
+        Integer index = constants.get(key);
+        if (index != null) return index;
+
+        try {
+            poolOut.writeByte(tag);
+            if (utf8 != null) {
+                poolOut.writeUTF(utf8);
+            } else {
+                poolOut.writeShort(first);
+                if (second >= 0) poolOut.writeShort(second);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        constants.put(key, poolCount);
+        return poolCount++;
+    }
+
+    int utf8(String text) {
+        return constant("U" + text, 1, 0, 0, text);
+    }
+
+    int classRef(String name) {
+        return constant("C" + name, 7, utf8(name), -1, null);
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        int nameAndType = constant("N" + name + descriptor, 12, utf8(name),
+            utf8(descriptor), null);
+        return constant("M" + owner + "." + name + descriptor, 10,
+            classRef(owner), nameAndType, null);
+    }
+
+    // Code.
+
+    int length() {
+        return length;
+    }
+
+    private void put(int b) {
+        if (length == code.length) code = Arrays.copyOf(code, length * 2);
+        code[length++] = (byte) b;
+    }
+
+    private void putShort(int s) {
+        put(s >> 8);
+        put(s);
+    }
+
+    private void putInt(int i) {
+        putShort(i >> 16);
+        putShort(i);
+    }
+
+    void op(int opcode) {
+        put(opcode);
+    }
+
+    // iload, istore etc. with a local variable index.
+    void local(int opcode, int index) {
+        put(opcode);
+        put(index);
+    }
+
+    void push(int value) {
+        if (value >= -1 && value <= 1) {
+            put(ICONST_0 + value);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            put(BIPUSH);
+            put(value);
+        } else {
+            put(SIPUSH);
+            putShort(value);
+        }
+    }
+
+    void invoke(int opcode, int methodRef) {
+        put(opcode);
+        putShort(methodRef);
+    }
+
+    void bind(Label label) {
+        label.offset = length;
+    }
+
+    void jump(int opcode, Label label) {
+        int instruction = length;
+        put(opcode);
+        fixups.add(new Fixup(instruction, length, label, false));
+        putShort(0);
+    }
+
+    // pc-style dispatch: goes to targets[value - low], or to other
+    // for values outside low..low + targets.length - 1.
+    void tableswitch(int low, Label[] targets, Label other) {
+        int instruction = length;
+        put(TABLESWITCH);
+        while (length % 4 != 0) put(0);
+        fixups.add(new Fixup(instruction, length, other, true));
+        putInt(0);
+        putInt(low);
+        putInt(low + targets.length - 1);
+
+        for (Label target : targets) {
+            fixups.add(new Fixup(instruction, length, target, true));
+            putInt(0);
+        }
+    }
+
+    // Fills in the branch offsets. Throws IllegalStateException if
+    // the code is too big for 16-bit ones.
+    private void resolve() {
+        for (Fixup fixup : fixups) {
+            int offset = fixup.label().offset - fixup.instruction();
+
+            if (fixup.wide()) {
+                code[fixup.at()] = (byte) (offset >> 24);
+                code[fixup.at() + 1] = (byte) (offset >> 16);
+                code[fixup.at() + 2] = (byte) (offset >> 8);
+                code[fixup.at() + 3] = (byte) offset;
+            } else {
+                if (offset != (short) offset) {
+                    throw new IllegalStateException("Method too big");
+                }
+                code[fixup.at()] = (byte) (offset >> 8);
+                code[fixup.at() + 1] = (byte) offset;
+            }
+        }
+    }
+
+    // The class file: name (e.g. "emulator/Compiled") implementing
+    // anInterface, with the code written so far as method.
+    byte[] toClass(String name, String anInterface, String method,
+        String descriptor, int maxStack, int maxLocals) {
+        resolve();
+
+        if (length > 65535) throw new IllegalStateException("Method too big");
+
+        int thisClass = classRef(name);
+        int superClass = classRef("java/lang/Object");
+        int interfaceClass = classRef(anInterface);
+        int objectInit = methodRef("java/lang/Object", "<init>", "()V");
+        int initName = utf8("<init>");
+        int initDescriptor = utf8("()V");
+        int methodName = utf8(method);
+        int methodDescriptor = utf8(descriptor);
+        int codeName = utf8("Code");
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        try {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(49);
+            out.writeShort(poolCount);
+            pool.writeTo(out);
+            out.writeShort(0x0031);  // public final super
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(1);
+            out.writeShort(interfaceClass);
+            out.writeShort(0);  // Fields.
+            out.writeShort(2);  // Methods.
+
+            // public <init>() { super(); }
+            out.writeShort(0x0001);
+            out.writeShort(initName);
+            out.writeShort(initDescriptor);
+            out.writeShort(1);
+            out.writeShort(codeName);
+            out.writeInt(12 + 5);
+            out.writeShort(1);
+            out.writeShort(1);
+            out.writeInt(5);
+            out.writeByte(ALOAD_0);
+            out.writeByte(INVOKESPECIAL);
+            out.writeShort(objectInit);
+            out.writeByte(RETURN);
+            out.writeShort(0);
+            out.writeShort(0);
+
+            out.writeShort(0x0001);
+            out.writeShort(methodName);
+            out.writeShort(methodDescriptor);
+            out.writeShort(1);
+            out.writeShort(codeName);
+            out.writeInt(12 + length);
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(length);
+            out.write(code, 0, length);
+            out.writeShort(0);  // Exception table.
+            out.writeShort(0);  // Attributes.
+
+            out.writeShort(0);  // Class attributes.
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        return bytes.toByteArray();
+    }
+}
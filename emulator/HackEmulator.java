@@ -0,0 +1,321 @@
+//Written by David Owen and Noah Barrall
+
+package emulator;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import assembler.HackAssembler;
+import vmtranslator.SourceMap;
+
+// Runs Hack machine code without the GUI. ROM and RAM are short[],
+// like the real 16-bit memories. Each instruction is decoded once,
+// when the program is loaded, into an int (see decode), so the
+// fetch-execute loop only switches on the ALU function.
+//
+// The usual Hack way to stop is a loop jumping to itself:
+//   (END)
+//   @END
+//   0;JMP
+// run stops there, or when it's used up its cycle budget.
+public class HackEmulator {
+
+    public static final int RAM_SIZE = 32768;
+    public static final int SCREEN = 16384;
+    public static final int KBD = 24576;
+
+    // Decoded C-instructions are negative, A-instructions are their
+    // value. For C: bits 0-5 the ALU function, 6 the a bit (M instead
+    // of A), 7-9 dest, 10-12 jump, 13 whether it's a halting loop.
+    private static final int C_INSTRUCTION = 1 << 31;
+    private static final int USE_M = 1 << 6;
+    static final int HALT = 1 << 13;
+
+    private final short[] rom;
+    private final int[] code;
+    private final short[] ram = new short[RAM_SIZE];
+    private int a;
+    private int d;
+    private int pc;
+    private boolean halted;
+    private HackJit.Region[] regions;  // See runCompiled.
+
+    public HackEmulator(short[] rom) {
+        this.rom = rom;
+        code = new int[rom.length];
+
+        for (int i = 0; i < rom.length; i++) {
+            code[i] = decode(rom[i]);
+
+            // @i-1 then 0;JMP, jumping back to the @ forever.
+            if (i > 0 && code[i] == decode((short) 0b1110101010000111) &&
+                code[i - 1] == i - 1) {
+                code[i] |= HALT;
+            }
+        }
+    }
+
+    private static int decode(short instruction) {
+        if (instruction >= 0) return instruction;
+
+        int comp = instruction >> 6 & 0x3F;
+        int useM = instruction >> 12 & 1;
+        int dest = instruction >> 3 & 7;
+        int jump = instruction & 7;
+        return C_INSTRUCTION | comp | useM << 6 | dest << 7 | jump << 10;
+    }
+
+    // Reads .hack (text), .bin (two bytes per instruction, high byte
+    // first) or .asm (assembled first).
+    public static short[] load(String filename) throws IOException {
+        byte[] bytes = Files.readAllBytes(Path.of(filename));
+
+        if (filename.endsWith(".asm")) return HackAssembler.assemble(bytes);
+
+        if (filename.endsWith(".bin")) {
+            short[] rom = new short[bytes.length / 2];
+            for (int i = 0; i < rom.length; i++) {
+                rom[i] = (short) (bytes[2 * i] << 8 | bytes[2 * i + 1] & 0xFF);
+            }
+            return rom;
+        }
+
+        String[] lines = new String(bytes, StandardCharsets.US_ASCII)
+            .strip().split("\\s+");
+        short[] rom = new short[lines.length];
+        for (int i = 0; i < lines.length; i++) {
+            rom[i] = (short) Integer.parseInt(lines[i], 2);
+        }
+        return rom;
+    }
+
+    public short[] ram() {
+        return ram;
+    }
+
+    public short[] rom() {
+        return rom;
+    }
+
+    public int pc() {
+        return pc;
+    }
+
+    public int a() {
+        return a;
+    }
+
+    public int d() {
+        return d;
+    }
+
+    public boolean halted() {
+        return halted;
+    }
+
+    public void setKeyboard(int key) {
+        ram[KBD] = (short) key;
+    }
+
+    // Back to the first instruction. RAM is left as it is, like the
+    // reset button.
+    public void reset() {
+        pc = 0;
+        halted = false;
+    }
+
+    // Runs until the program halts or maxCycles instructions have
+    // run. Returns the number run.
+    public long run(long maxCycles) {
+        int[] code = this.code;
+        short[] ram = this.ram;
+        int a = this.a;
+        int d = this.d;
+        int pc = this.pc;
+        long cycles = 0;
+
+        while (cycles < maxCycles) {
+            if (pc >= code.length) {
+                halted = true;
+                break;
+            }
+
+            int op = code[pc];
+            cycles++;
+
+            if (op >= 0) {
+                a = op;
+                pc++;
+                continue;
+            }
+
+            int y = (op & USE_M) != 0 ? ram[a & 0x7FFF] : a;
+            int out;
+
+            switch (op & 0x3F) {
+                case 0b101010: out = 0; break;
+                case 0b111111: out = 1; break;
+                case 0b111010: out = -1; break;
+                case 0b001100: out = d; break;
+                case 0b110000: out = y; break;
+                case 0b001101: out = ~d; break;
+                case 0b110001: out = ~y; break;
+                case 0b001111: out = -d; break;
+                case 0b110011: out = -y; break;
+                case 0b011111: out = d + 1; break;
+                case 0b110111: out = y + 1; break;
+                case 0b001110: out = d - 1; break;
+                case 0b110010: out = y - 1; break;
+                case 0b000010: out = d + y; break;
+                case 0b010011: out = d - y; break;
+                case 0b000111: out = y - d; break;
+                case 0b000000: out = d & y; break;
+                case 0b010101: out = d | y; break;
+                default: out = alu(op & 0x3F, d, y);
+            }
+
+            out = (short) out;
+            int address = a;
+
+            if ((op & 1 << 7) != 0) ram[address & 0x7FFF] = (short) out;
+            if ((op & 2 << 7) != 0) d = out;
+            if ((op & 4 << 7) != 0) a = out;
+
+            int jump = op >> 10 & 7;
+
+            if ((jump & 4) != 0 && out < 0 || (jump & 2) != 0 && out == 0 ||
+                (jump & 1) != 0 && out > 0) {
+                if ((op & HALT) != 0 && address == pc - 1) {
+                    halted = true;
+                    break;
+                }
+                pc = address & 0x7FFF;
+            } else {
+                pc++;
+            }
+        }
+
+        this.a = a;
+        this.d = d;
+        this.pc = pc;
+        return cycles;
+    }
+
+    // Like run, but with the program compiled to JVM bytecode first
+    // (see HackJit). Stops at the same place as run would, taking the
+    // last few instructions before the budget runs out one at a time.
+    public long runCompiled(long maxCycles) {
+        if (regions == null) regions = HackJit.compile(code);
+
+        int[] state = new int[4];
+        long cycles = 0;
+
+        while (!halted && cycles < maxCycles) {
+            HackJit.Region region = pc < regions.length ? regions[pc] : null;
+
+            // Not the start of a block, e.g. a jump into the middle of
+            // one; interpret up to the next.
+            if (region == null) {
+                cycles += run(1);
+                continue;
+            }
+
+            state[HackJit.A] = a;
+            state[HackJit.D] = d;
+            state[HackJit.PC] = pc;
+            state[HackJit.HALTED] = 0;
+            long after = region.run(ram, state, cycles, maxCycles);
+            a = state[HackJit.A];
+            d = state[HackJit.D];
+            pc = state[HackJit.PC];
+            halted = state[HackJit.HALTED] != 0;
+
+            // The next block would go past the budget.
+            if (after == cycles && !halted) {
+                return cycles + run(maxCycles - cycles);
+            }
+
+            cycles = after;
+        }
+
+        return cycles;
+    }
+
+    // The ALU from its control bits, for the combinations that aren't
+    // in the Hack instruction set.
+    static int alu(int bits, int x, int y) {
+        if ((bits & 0b100000) != 0) x = 0;
+        if ((bits & 0b010000) != 0) x = ~x;
+        if ((bits & 0b001000) != 0) y = 0;
+        if ((bits & 0b000100) != 0) y = ~y;
+        int out = (bits & 0b000010) != 0 ? x + y : x & y;
+        return (bits & 0b000001) != 0 ? ~out : out;
+    }
+
+    // Runs a program and prints how long it took and, with
+    // --dump=first-last, part of RAM. --set=address=value sets RAM
+    // first; --cycles=n sets the budget (default 1 billion); --jit
+    // uses runCompiled.
+    public static void main(String[] args) throws IOException {
+        String filename = null;
+        long maxCycles = 1_000_000_000L;
+        int dumpFirst = 0;
+        int dumpLast = -1;
+        boolean jit = false;
+        String mapFilename = null;
+        String flameFilename = null;
+        List<int[]> sets = new ArrayList<>();
+
+        for (String arg : args) {
+            if (arg.startsWith("--cycles=")) {
+                maxCycles = Long.parseLong(arg.substring(9));
+            } else if (arg.startsWith("--set=")) {
+                String[] parts = arg.substring(6).split("=");
+                sets.add(new int[] {Integer.parseInt(parts[0]),
+                    Integer.parseInt(parts[1])});
+            } else if (arg.equals("--jit")) {
+                jit = true;
+            } else if (arg.startsWith("--profile=")) {
+                mapFilename = arg.substring(10);
+            } else if (arg.startsWith("--flame=")) {
+                flameFilename = arg.substring(8);
+            } else if (arg.startsWith("--dump=")) {
+                String[] parts = arg.substring(7).split("-");
+                dumpFirst = Integer.parseInt(parts[0]);
+                dumpLast = Integer.parseInt(parts[1]);
+            } else {
+                filename = arg;
+            }
+        }
+
+        HackEmulator emulator = new HackEmulator(load(filename));
+        for (int[] set : sets) emulator.ram()[set[0]] = (short) set[1];
+
+        Profiler profiler = mapFilename == null ? null :
+            new Profiler(emulator, SourceMap.read(Path.of(mapFilename)));
+
+        long start = System.nanoTime();
+        long cycles = profiler != null ? profiler.run(maxCycles) :
+            jit ? emulator.runCompiled(maxCycles) : emulator.run(maxCycles);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("%d cycles in %.3f s (%.0f million/s), %s%n",
+            cycles, seconds, cycles / seconds / 1e6,
+            emulator.halted() ? "halted" : "cycle budget used up");
+
+        for (int i = dumpFirst; i <= dumpLast; i++) {
+            System.out.printf("RAM[%d] = %d%n", i, emulator.ram()[i]);
+        }
+
+        if (profiler != null) {
+            System.out.print(profiler.report(20));
+            if (flameFilename != null) {
+                Files.writeString(Path.of(flameFilename), profiler.folded());
+            }
+        }
+    }
+}
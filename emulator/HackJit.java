@@ -0,0 +1,375 @@
+//Written by David Owen and Noah Barrall
+
+package emulator;
+
+import static emulator.Bytecode.*;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.List;
+
+// Compiles Hack machine code to JVM bytecode, for
+// HackEmulator.runCompiled. The ROM is cut into basic blocks, which
+// start at every address an A-instruction loads (any of them could be
+// a jump target or a return address), after every jump, and at region
+// boundaries. Runs of up to REGION_SIZE instructions become one
+// method in a hidden class, with a, d and pc in JVM locals:
+//
+//   dispatch: switch (pc) { case block start: ... }
+//   block:    count its cycles (or leave if over budget),
+//             its instructions,
+//             then goto the next block directly when the jump target
+//             is a constant loaded in the block, or set pc and go
+//             back to dispatch when it isn't (e.g. a return).
+//
+// Jumps out of the region, and block starts it doesn't know, go back
+// to HackEmulator, which moves to the right region or interprets.
+class HackJit {
+
+    // What each compiled region is.
+    interface Region {
+        // Runs from state[PC] until leaving the region, halting or
+        // reaching a block that would take cycles past maxCycles.
+        // Returns the new cycle count.
+        long run(short[] ram, int[] state, long cycles, long maxCycles);
+    }
+
+    // Indexes into the state array.
+    static final int A = 0, D = 1, PC = 2, HALTED = 3;
+
+    private static final int REGION_SIZE = 1024;
+
+    // JVM locals in Region.run.
+    private static final int RAM = 1, STATE = 2, CYCLES = 3, MAX = 5;
+    private static final int LOCAL_A = 7, LOCAL_D = 8, LOCAL_PC = 9,
+        OUT = 10, OLD_A = 11;
+
+    private static final String ALU_DESCRIPTOR = "(III)I";
+
+    private final int[] code;
+    private final boolean[] leader;
+    private final Region[] regions;
+
+    private HackJit(int[] code) {
+        this.code = code;
+        leader = new boolean[code.length + 1];
+        regions = new Region[code.length];
+
+        if (code.length > 0) leader[0] = true;
+
+        for (int i = 0; i < code.length; i++) {
+            if (code[i] >= 0 && code[i] < code.length) leader[code[i]] = true;
+            if (isJump(code[i])) leader[i + 1] = true;
+            if (i % REGION_SIZE == 0) leader[i] = true;
+        }
+    }
+
+    // For each ROM address, the region to run from there, or null
+    // where no block starts.
+    static Region[] compile(int[] code) {
+        HackJit jit = new HackJit(code);
+
+        for (int start = 0; start < code.length; start += REGION_SIZE) {
+            jit.compile(start, Math.min(start + REGION_SIZE, code.length));
+        }
+
+        return jit.regions;
+    }
+
+    private static boolean isJump(int op) {
+        return op < 0 && (op >> 10 & 7) != 0;
+    }
+
+    // Compiles code[start..end), splitting it if the method would be
+    // too big.
+    private void compile(int start, int end) {
+        Region region;
+
+        try {
+            region = define(generate(start, end));
+        } catch (IllegalStateException e) {
+            int middle = (start + end) / 2;
+            leader[middle] = true;
+            compile(start, middle);
+            compile(middle, end);
+            return;
+        }
+
+        for (int i = start; i < end; i++) {
+            if (leader[i]) regions[i] = region;
+        }
+    }
+
+    private static Region define(byte[] classFile) {
+        try {
+            return (Region) MethodHandles.lookup()
+                .defineHiddenClass(classFile, true).lookupClass()
+                .getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private byte[] generate(int start, int end) {
+        Bytecode b = new Bytecode();
+        Label dispatch = new Label();
+        Label exit = new Label();
+        Label[] blocks = new Label[end - start];
+        List<Label> budgetStubs = new ArrayList<>();
+        List<Integer> budgetPcs = new ArrayList<>();
+
+        for (int i = start; i < end; i++) {
+            blocks[i - start] = leader[i] ? new Label() : exit;
+        }
+
+        loadState(b, A, LOCAL_A);
+        loadState(b, D, LOCAL_D);
+        loadState(b, PC, LOCAL_PC);
+
+        b.bind(dispatch);
+        b.local(ILOAD, LOCAL_PC);
+        b.tableswitch(start, blocks, exit);
+
+        int i = start;
+
+        while (i < end) {
+            int blockStart = i;
+            int blockEnd = i + 1;  // One past the last instruction.
+            while (blockEnd < end && !leader[blockEnd] &&
+                !isJump(code[blockEnd - 1])) {
+                blockEnd++;
+            }
+
+            b.bind(blocks[blockStart - start]);
+
+            // Leave before the block if it won't fit in the budget.
+            Label stub = new Label();
+            budgetStubs.add(stub);
+            budgetPcs.add(blockStart);
+            b.local(LLOAD, CYCLES);
+            b.push(blockEnd - blockStart);
+            b.op(I2L);
+            b.op(LADD);
+            b.local(LLOAD, MAX);
+            b.op(LCMP);
+            b.jump(IFGT, stub);
+            b.local(LLOAD, CYCLES);
+            b.push(blockEnd - blockStart);
+            b.op(I2L);
+            b.op(LADD);
+            b.local(LSTORE, CYCLES);
+
+            int knownA = -1;  // Constant in A, if any.
+
+            for (int j = blockStart; j < blockEnd; j++) {
+                int op = code[j];
+
+                if (op >= 0) {
+                    b.push(op);
+                    b.local(ISTORE, LOCAL_A);
+                    knownA = op;
+                } else {
+                    writeC(b, op, j, knownA, start, end, blocks, dispatch,
+                        exit);
+                    if ((op >> 7 & 4) != 0) knownA = -1;
+                }
+            }
+
+            // Falling through into the next block, written next unless
+            // it's in another region.
+            if (!isJump(code[blockEnd - 1]) ||
+                (code[blockEnd - 1] >> 10 & 7) != 7) {
+                if (blockEnd >= end) goTo(b, blockEnd, start, end, blocks,
+                    exit);
+            }
+
+            i = blockEnd;
+        }
+
+        for (int s = 0; s < budgetStubs.size(); s++) {
+            b.bind(budgetStubs.get(s));
+            b.push(budgetPcs.get(s));
+            b.local(ISTORE, LOCAL_PC);
+            b.jump(GOTO, exit);
+        }
+
+        b.bind(exit);
+        storeState(b, A, LOCAL_A);
+        storeState(b, D, LOCAL_D);
+        storeState(b, PC, LOCAL_PC);
+        b.local(LLOAD, CYCLES);
+        b.op(LRETURN);
+
+        return b.toClass("emulator/HackJit$Compiled", "emulator/HackJit$Region",
+            "run", "([S[IJJ)J", 6, 12);
+    }
+
+    private static void loadState(Bytecode b, int index, int local) {
+        b.local(ALOAD, STATE);
+        b.push(index);
+        b.op(IALOAD);
+        b.local(ISTORE, local);
+    }
+
+    private static void storeState(Bytecode b, int index, int local) {
+        b.local(ALOAD, STATE);
+        b.push(index);
+        b.local(ILOAD, local);
+        b.op(IASTORE);
+    }
+
+    // Continues at target: straight to its block if this region has
+    // it, otherwise back to HackEmulator.
+    private void goTo(Bytecode b, int target, int start, int end,
+        Label[] blocks, Label exit) {
+        if (target >= start && target < end && leader[target]) {
+            b.jump(GOTO, blocks[target - start]);
+        } else {
+            b.push(target);
+            b.local(ISTORE, LOCAL_PC);
+            b.jump(GOTO, exit);
+        }
+    }
+
+    // RAM[A], with A cut to 15 bits like the address bus.
+    private static void loadM(Bytecode b) {
+        b.local(ALOAD, RAM);
+        b.local(ILOAD, LOCAL_A);
+        b.push(0x7FFF);
+        b.op(IAND);
+        b.op(SALOAD);
+    }
+
+    private void writeC(Bytecode b, int op, int pc, int knownA, int start,
+        int end, Label[] blocks, Label dispatch, Label exit) {
+        boolean useM = (op & 1 << 6) != 0;
+        int dest = op >> 7 & 7;
+        int jump = op >> 10 & 7;
+
+        writeAlu(b, op & 0x3F, useM);
+        b.op(I2S);
+        b.local(ISTORE, OUT);
+
+        if ((dest & 1) != 0) {
+            b.local(ALOAD, RAM);
+            b.local(ILOAD, LOCAL_A);
+            b.push(0x7FFF);
+            b.op(IAND);
+            b.local(ILOAD, OUT);
+            b.op(SASTORE);
+        }
+
+        if ((dest & 2) != 0) {
+            b.local(ILOAD, OUT);
+            b.local(ISTORE, LOCAL_D);
+        }
+
+        // The jump goes where A pointed before this instruction.
+        int target = LOCAL_A;
+
+        if ((dest & 4) != 0) {
+            if (jump != 0) {
+                b.local(ILOAD, LOCAL_A);
+                b.local(ISTORE, OLD_A);
+                target = OLD_A;
+            }
+            b.local(ILOAD, OUT);
+            b.local(ISTORE, LOCAL_A);
+        }
+
+        if (jump == 0) return;
+
+        // Like run, this only halts if A points at the @ just before
+        // it. That's known here when the @ is in the same block;
+        // otherwise, e.g. when the jump starts a block, A is checked
+        // at run time.
+        if ((op & HackEmulator.HALT) != 0 && knownA == pc - 1) {
+            writeHalt(b, pc, exit);
+            return;
+        }
+
+        if ((op & HackEmulator.HALT) != 0 && knownA < 0) {
+            Label running = new Label();
+            b.local(ILOAD, target);
+            b.push(pc - 1);
+            b.jump(IF_ICMPNE, running);
+            writeHalt(b, pc, exit);
+            b.bind(running);
+        }
+
+        Label notTaken = new Label();
+
+        if (jump != 7) {
+            b.local(ILOAD, OUT);
+            b.jump(inverse(jump), notTaken);
+        }
+
+        if (knownA >= 0) {
+            goTo(b, knownA, start, end, blocks, exit);
+        } else {
+            b.local(ILOAD, target);
+            b.push(0x7FFF);
+            b.op(IAND);
+            b.local(ISTORE, LOCAL_PC);
+            b.jump(GOTO, dispatch);
+        }
+
+        b.bind(notTaken);
+    }
+
+    // Stops at pc with the emulator halted.
+    private static void writeHalt(Bytecode b, int pc, Label exit) {
+        b.push(pc);
+        b.local(ISTORE, LOCAL_PC);
+        b.local(ALOAD, STATE);
+        b.push(HALTED);
+        b.push(1);
+        b.op(IASTORE);
+        b.jump(GOTO, exit);
+    }
+
+    // Branch opcode for "don't jump" on out.
+    private static int inverse(int jump) {
+        switch (jump) {
+            case 1: return IFLE;  // JGT
+            case 2: return IFNE;  // JEQ
+            case 3: return IFLT;  // JGE
+            case 4: return IFGE;  // JLT
+            case 5: return IFEQ;  // JNE
+            default: return IFGT;  // JLE
+        }
+    }
+
+    // Leaves the ALU output for comp on the stack. x is D, y is A or M.
+    private static void writeAlu(Bytecode b, int comp, boolean useM) {
+        Runnable x = () -> b.local(ILOAD, LOCAL_D);
+        Runnable y = useM ? () -> loadM(b) : () -> b.local(ILOAD, LOCAL_A);
+
+        switch (comp) {
+            case 0b101010: b.push(0); break;
+            case 0b111111: b.push(1); break;
+            case 0b111010: b.push(-1); break;
+            case 0b001100: x.run(); break;
+            case 0b110000: y.run(); break;
+            case 0b001101: x.run(); b.push(-1); b.op(IXOR); break;
+            case 0b110001: y.run(); b.push(-1); b.op(IXOR); break;
+            case 0b001111: x.run(); b.op(INEG); break;
+            case 0b110011: y.run(); b.op(INEG); break;
+            case 0b011111: x.run(); b.push(1); b.op(IADD); break;
+            case 0b110111: y.run(); b.push(1); b.op(IADD); break;
+            case 0b001110: x.run(); b.push(1); b.op(ISUB); break;
+            case 0b110010: y.run(); b.push(1); b.op(ISUB); break;
+            case 0b000010: x.run(); y.run(); b.op(IADD); break;
+            case 0b010011: x.run(); y.run(); b.op(ISUB); break;
+            case 0b000111: y.run(); x.run(); b.op(ISUB); break;
+            case 0b000000: x.run(); y.run(); b.op(IAND); break;
+            case 0b010101: x.run(); y.run(); b.op(IOR); break;
+            default:
+                b.push(comp);
+                x.run();
+                y.run();
+                b.invoke(INVOKESTATIC, b.methodRef("emulator/HackEmulator",
+                    "alu", ALU_DESCRIPTOR));
+        }
+    }
+}
@@ -0,0 +1,233 @@
+//Written by David Owen and Noah Barrall
+
+package emulator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import vmtranslator.SourceMap;
+
+// Runs a program one instruction at a time, counting the cycles spent
+// at each ROM address, and uses the translator's source map
+// (VmTranslator --source-map) to charge them to VM functions and .vm
+// lines. Every cycle is counted, so it's exact, but it only goes at
+// the interpreter's speed at best.
+//
+// It also keeps a shadow call stack, for flame graphs. A jump to the
+// first address of a function is a call if LCL has changed (a loop
+// back to the top of a function with no locals doesn't change it),
+// and a jump to a computed address anywhere else (A=M then 0;JMP) is
+// a return if LCL is back to the caller's (returns from the
+// intrinsics' routines don't change it). A jump to another function
+// that leaves LCL alone is a tail call (--tail-calls), which replaces
+// the caller's frame on the stack. folded() gives the
+// stacks in the collapsed format flamegraph.pl and speedscope read:
+//
+//   (bootstrap);Sys.init;Main.main;Math.multiply 12345
+public class Profiler {
+
+    // Name for addresses the source map doesn't cover.
+    private static final String UNKNOWN = "(unknown)";
+
+    // A node in the tree of call stacks: cycles spent in function
+    // when called this way, not counting its callees.
+    private static class Frame {
+        final int function;
+        final Map<Integer, Frame> callees = new HashMap<>();
+        long cycles;
+
+        Frame(int function) {
+            this.function = function;
+        }
+
+        Frame callee(int function) {
+            return callees.computeIfAbsent(function, Frame::new);
+        }
+    }
+
+    // A call that hasn't returned yet, with LCL as it set it.
+    private record Activation(Frame frame, int lcl, Activation caller) {}
+
+    private final HackEmulator emulator;
+    private final SourceMap map;
+    private final long[] counts;
+    private final int[] functionAt;  // Index into functions.
+    private final boolean[] entry;  // First address of a function.
+    private final List<String> functions = new ArrayList<>();
+    private final Frame root;
+    private Activation current;
+
+    public Profiler(HackEmulator emulator, SourceMap map) {
+        this.emulator = emulator;
+        this.map = map;
+        int size = emulator.rom().length;
+        counts = new long[size];
+        functionAt = new int[size];
+        entry = new boolean[size];
+
+        Map<String, Integer> numbers = new HashMap<>();
+        for (int address = 0; address < size; address++) {
+            SourceMap.Entry mapped = map.lookup(address);
+            String function = mapped == null ? UNKNOWN : mapped.function();
+            Integer number = numbers.get(function);
+
+            if (number == null) {
+                number = functions.size();
+                functions.add(function);
+                numbers.put(function, number);
+                entry[address] = !function.startsWith("(");
+            }
+
+            functionAt[address] = number;
+        }
+
+        root = new Frame(size > 0 ? functionAt[emulator.pc()] : 0);
+        current = new Activation(root, lcl(), null);
+    }
+
+    private int lcl() {
+        return emulator.ram()[1];
+    }
+
+    // Runs until the program halts or maxCycles instructions have run,
+    // counting as it goes. Returns the number run.
+    public long run(long maxCycles) {
+        short[] rom = emulator.rom();
+        long cycles = 0;
+
+        while (cycles < maxCycles && !emulator.halted()) {
+            int pc = emulator.pc();
+            if (emulator.run(1) == 0) break;
+            cycles++;
+            counts[pc]++;
+            Frame frame = current.frame();
+            if (frame.function != functionAt[pc]) {
+                frame = frame.callee(functionAt[pc]);  // E.g. $$CALL.
+            }
+            frame.cycles++;
+
+            // 0;JMP can go to the next address, e.g. the bootstrap's
+            // call to a Sys.init written right after it.
+            int next = emulator.pc();
+            if ((next != pc + 1 || (rom[pc] & 7) == 7 && rom[pc] < 0) &&
+                !emulator.halted()) {
+                jumped(rom, pc, next);
+            }
+        }
+
+        return cycles;
+    }
+
+    private void jumped(short[] rom, int from, int to) {
+        boolean computed = from > 0 && rom[from - 1] < 0;
+
+        boolean toEntry = to < entry.length && entry[to];
+
+        if (toEntry && lcl() != current.lcl()) {
+            Frame callee = current.frame().callee(functionAt[to]);
+            current = new Activation(callee, lcl(), current);
+        } else if (toEntry && current.caller() != null &&
+            functionAt[to] != current.frame().function) {
+            // A tail call: the callee takes over the frame.
+            Frame callee = current.caller().frame()
+                .callee(functionAt[to]);
+            current = new Activation(callee, lcl(), current.caller());
+        } else if (computed && current.caller() != null &&
+            lcl() == current.caller().lcl()) {
+            current = current.caller();
+        }
+    }
+
+    public long cycles(int address) {
+        return counts[address];
+    }
+
+    // Cycles by function, not counting callees.
+    public Map<String, Long> functionCycles() {
+        Map<String, Long> cycles = new HashMap<>();
+
+        for (int address = 0; address < counts.length; address++) {
+            if (counts[address] > 0) {
+                cycles.merge(functions.get(functionAt[address]),
+                    counts[address], Long::sum);
+            }
+        }
+
+        return cycles;
+    }
+
+    // Cycles by "File.vm:line (function)".
+    public Map<String, Long> lineCycles() {
+        Map<String, Long> cycles = new HashMap<>();
+
+        for (int address = 0; address < counts.length; address++) {
+            if (counts[address] == 0) continue;
+
+            SourceMap.Entry mapped = map.lookup(address);
+            String line = mapped == null ? UNKNOWN :
+                mapped.file() + ":" + mapped.line() + " (" +
+                mapped.function() + ")";
+            cycles.merge(line, counts[address], Long::sum);
+        }
+
+        return cycles;
+    }
+
+    // The call stacks, one per line, with their cycles.
+    public String folded() {
+        StringBuilder text = new StringBuilder();
+        appendFolded(text, root, functions.get(root.function));
+        return text.toString();
+    }
+
+    private void appendFolded(StringBuilder text, Frame frame,
+        String stack) {
+        if (frame.cycles > 0) {
+            text.append(stack).append(' ').append(frame.cycles)
+                .append('\n');
+        }
+
+        // Sorted by name so the output doesn't change from run to run.
+        Map<String, Frame> callees = new TreeMap<>();
+        for (Frame callee : frame.callees.values()) {
+            callees.put(functions.get(callee.function), callee);
+        }
+
+        for (Map.Entry<String, Frame> callee : callees.entrySet()) {
+            appendFolded(text, callee.getValue(),
+                stack + ";" + callee.getKey());
+        }
+    }
+
+    // The top lines of functionCycles and lineCycles.
+    public String report(int top) {
+        long total = 0;
+        for (long count : counts) total += count;
+
+        StringBuilder report = new StringBuilder(
+            String.format("Profile: %d cycles%n", total));
+        report.append("  By function:\n");
+        appendTop(report, functionCycles(), total, top);
+        report.append("  By line:\n");
+        appendTop(report, lineCycles(), total, top);
+        return report.toString();
+    }
+
+    private static void appendTop(StringBuilder report,
+        Map<String, Long> cycles, long total, int top) {
+        List<Map.Entry<String, Long>> entries =
+            new ArrayList<>(cycles.entrySet());
+        entries.sort(Map.Entry.<String, Long>comparingByValue()
+            .reversed().thenComparing(Map.Entry.comparingByKey()));
+
+        for (Map.Entry<String, Long> entry :
+            entries.subList(0, Math.min(top, entries.size()))) {
+            report.append(String.format("    %-40s %12d %5.1f%%%n",
+                entry.getKey(), entry.getValue(),
+                100.0 * entry.getValue() / total));
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package emulator.test;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.*;
+
+import java.util.Arrays;
+
+// Runs programs translated with each code generation option, checking
+// they leave the same results as the plain translation.
+public class CodeGenerationTest {
+
+    // Where the programs leave results: temp, statics and an area
+    // that pointer 1 (THAT) points to.
+    private static final int[][] RESULTS = {{5, 13}, {16, 32},
+            {3000, 4000}};
+
+    // Recursion, loops and every segment. Results: fib(12) in temp 0,
+    // 6 * 7 in that 0, i * i in 3010 + i for i < 5 (written through
+    // this), 5 in temp 1, and 10 in static 0 and temp 2.
+    private static final String PROGRAM = "function Sys.init 0\n" +
+            "push constant 12\ncall Main.fib 1\npop temp 0\n" +
+            "push constant 3000\npop pointer 1\n" +
+            "push constant 6\npush constant 7\ncall Main.mul 2\n" +
+            "pop that 0\n" +
+            "push constant 3010\npop pointer 0\n" +
+            "push constant 5\ncall Main.fill 1\npop temp 1\n" +
+            "push constant 9\npop static 0\ncall Main.bump 0\n" +
+            "pop temp 2\nlabel HALT\ngoto HALT\n" +
+
+            "function Main.fib 0\npush argument 0\npush constant 2\n" +
+            "lt\nif-goto BASE\npush argument 0\npush constant 1\nsub\n" +
+            "call Main.fib 1\npush argument 0\npush constant 2\nsub\n" +
+            "call Main.fib 1\nadd\nreturn\n" +
+            "label BASE\npush argument 0\nreturn\n" +
+
+            "function Main.mul 1\nlabel MUL_LOOP\npush argument 1\n" +
+            "push constant 0\neq\nif-goto MUL_END\npush local 0\n" +
+            "push argument 0\nadd\npop local 0\npush argument 1\n" +
+            "push constant 1\nsub\npop argument 1\ngoto MUL_LOOP\n" +
+            "label MUL_END\npush local 0\nreturn\n" +
+
+            "function Main.fill 1\nlabel FILL_LOOP\npush local 0\n" +
+            "push argument 0\nlt\nnot\nif-goto FILL_END\n" +
+            "push pointer 1\npush pointer 0\npush local 0\nadd\n" +
+            "pop pointer 1\npush local 0\npush local 0\n" +
+            "call Main.mul 2\npop that 0\npop pointer 1\n" +
+            "push local 0\npush constant 1\nadd\npop local 0\n" +
+            "goto FILL_LOOP\nlabel FILL_END\npush argument 0\nreturn\n" +
+
+            "function Main.bump 0\npush static 0\npush constant 1\n" +
+            "add\npop static 0\npush static 0\nreturn\n";
+
+    // Values where comparing by subtracting would overflow, and
+    // either side of 0.
+    private static final int[] VALUES = {0, 1, -1, 2, -2, 100, 16384,
+            -16385, 32767, -32768};
+
+    // x operator y [not] for every pair of VALUES, as a program
+    // storing each result in the next word from 3000. With branch, the
+    // result is stored by an if-goto taking it (1) or not (0).
+    private static String operations(String operator, boolean branch) {
+        StringBuilder source = new StringBuilder("function Sys.init 0\n" +
+                "push constant 3000\npop pointer 1\n");
+        int i = 0;
+
+        for (boolean not : new boolean[] {false, true}) {
+            for (int x : VALUES) {
+                for (int y : VALUES) {
+                    source.append(push(x)).append(push(y))
+                            .append(operator).append('\n');
+                    if (not) source.append("not\n");
+
+                    if (branch) {
+                        source.append("if-goto TRUE_" + i + "\n" +
+                                "push constant 0\npop that " + i +
+                                "\ngoto NEXT_" + i + "\nlabel TRUE_" +
+                                i + "\npush constant 1\npop that " +
+                                i + "\nlabel NEXT_" + i + "\n");
+                    } else {
+                        source.append("pop that " + i + "\n");
+                    }
+                    i++;
+                }
+            }
+        }
+
+        return source.append("label HALT\ngoto HALT\n").toString();
+    }
+
+    private static String push(int n) {
+        if (n == -32768) return "push constant 32767\nnot\n";
+        return n < 0 ? "push constant " + -n + "\nneg\n" :
+                "push constant " + n + "\n";
+    }
+
+    // The result areas after running source.
+    private static short[] results(String source, String flags) {
+        short[] ram = TestRun.runToHalt(source, flags).ram();
+        short[] results = new short[0];
+
+        for (int[] range : RESULTS) {
+            int length = results.length;
+            results = Arrays.copyOf(results, length + range[1] - range[0]);
+            System.arraycopy(ram, range[0], results, length,
+                    range[1] - range[0]);
+        }
+
+        return results;
+    }
+
+    private static void assertSameAsPlain(String source, String flags) {
+        assertArrayEquals(results(source, ""), results(source, flags),
+                flags);
+    }
+
+    @Test
+    public void testProgram() {
+        short[] results = results(PROGRAM, "");
+
+        assertEquals(144, results[0]);
+        assertEquals(5, results[1]);
+        assertEquals(10, results[2]);
+        assertEquals(10, results[8]);
+        assertEquals(42, results[24]);
+        assertEquals(16, results[24 + 14]);
+    }
+
+    @Test
+    public void testCompactCalls() {
+        for (String flags : new String[] {"--compact-calls",
+                "--compact-calls --peephole",
+                "--compact-calls --cache-tos --fuse-branches"}) {
+            assertSameAsPlain(PROGRAM, flags);
+        }
+    }
+
+    @Test
+    public void testCacheTos() {
+        // 0 lt 1, the second result at 3000.
+        assertEquals(-1, results(operations("lt", false), "")[24 + 1]);
+
+        for (String flags : new String[] {"--cache-tos",
+                "--cache-tos --peephole"}) {
+            assertSameAsPlain(PROGRAM, flags);
+
+            for (String operator : new String[] {"eq", "lt", "gt", "add",
+                    "sub", "and", "or"}) {
+                assertSameAsPlain(operations(operator, false), flags);
+            }
+        }
+    }
+
+    @Test
+    public void testFuseBranches() {
+        // 0 lt 1 takes the branch.
+        assertEquals(1, results(operations("lt", true), "")[24 + 1]);
+
+        for (String flags : new String[] {"--fuse-branches",
+                "--fuse-branches --cache-tos --peephole"}) {
+            assertSameAsPlain(PROGRAM, flags);
+
+            for (String operator : new String[] {"eq", "lt", "gt"}) {
+                assertSameAsPlain(operations(operator, true), flags);
+            }
+        }
+    }
+
+    // Main.dirty leaves 7s on the stack where each Main.locals_n's
+    // locals go. Main.locals_n returns its locals' sum, plus 5 through
+    // its last local, into that k.
+    @Test
+    public void testLocals() {
+        int[] counts = {1, 2, 3, 4, 8, 9, 20};
+        StringBuilder source = new StringBuilder("function Sys.init 0\n" +
+                "push constant 3000\npop pointer 1\n");
+
+        for (int k = 0; k < counts.length; k++) {
+            source.append("call Main.dirty 0\npop temp 1\ncall Main.locals_")
+                    .append(counts[k]).append(" 0\npop that ").append(k)
+                    .append('\n');
+        }
+        source.append("label HALT\ngoto HALT\n" +
+                "function Main.dirty 0\n" +
+                "push constant 7\n".repeat(30) + "push constant 0\n" +
+                "return\n");
+
+        for (int n : counts) {
+            source.append("function Main.locals_" + n + " " + n + "\n" +
+                    "push constant 5\npop local " + (n - 1) + "\n" +
+                    "push constant 0\n");
+            for (int i = 0; i < n; i++) {
+                source.append("push local " + i + "\nadd\n");
+            }
+            source.append("return\n");
+        }
+
+        for (String flags : new String[] {"", "--peephole", "--cache-tos",
+                "--compact-calls"}) {
+            short[] results = results(source.toString(), flags);
+
+            for (int k = 0; k < counts.length; k++) {
+                assertEquals(5, results[24 + k], flags);
+            }
+        }
+    }
+}
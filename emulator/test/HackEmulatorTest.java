@@ -0,0 +1,119 @@
+package emulator.test;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.*;
+
+import java.util.Random;
+
+import assembler.HackAssembler;
+import emulator.HackEmulator;
+
+public class HackEmulatorTest {
+
+    private static HackEmulator load(String asm) {
+        return new HackEmulator(HackAssembler.assemble(asm.getBytes()));
+    }
+
+    // R2 = R0 * R1 by repeated addition.
+    private static final String MULT = "@R2\nM=0\n(LOOP)\n@R1\nD=M\n" +
+            "@END\nD;JEQ\n@R0\nD=M\n@R2\nM=M+D\n@R1\nM=M-1\n@LOOP\n" +
+            "0;JMP\n(END)\n@END\n0;JMP\n";
+
+    @Test
+    public void testMult() {
+        HackEmulator emulator = load(MULT);
+        emulator.ram()[0] = 123;
+        emulator.ram()[1] = 45;
+        long cycles = emulator.run(1_000_000);
+
+        assertTrue(emulator.halted());
+        assertEquals(5535, emulator.ram()[2]);
+        assertEquals(2 + 45 * 12 + 4 + 2, cycles);
+    }
+
+    @Test
+    public void testCycleBudget() {
+        HackEmulator emulator = load(MULT);
+        emulator.ram()[0] = 1;
+        emulator.ram()[1] = 1000;
+
+        assertEquals(100, emulator.run(100));
+        assertFalse(emulator.halted());
+        emulator.run(1_000_000);
+        assertTrue(emulator.halted());
+        assertEquals(1000, emulator.ram()[2]);
+    }
+
+    @Test
+    public void testRegistersAndWraparound() {
+        HackEmulator emulator = load("@32767\nD=A\nD=D+1\n@KBD\n" +
+                "AM=D\nD=!A\n");
+        emulator.setKeyboard(7);
+        emulator.run(100);
+
+        assertTrue(emulator.halted());  // Ran off the end.
+        assertEquals(-32768, emulator.ram()[HackEmulator.KBD]);
+        assertEquals(-32768, emulator.a());
+        assertEquals(32767, emulator.d());
+    }
+
+    @Test
+    public void testCompiledMult() {
+        HackEmulator emulator = load(MULT);
+        emulator.ram()[0] = 123;
+        emulator.ram()[1] = 45;
+
+        assertEquals(2 + 45 * 12 + 4 + 2, emulator.runCompiled(1_000_000));
+        assertTrue(emulator.halted());
+        assertEquals(5535, emulator.ram()[2]);
+    }
+
+    // Programs reaching an '@END / 0;JMP' halt whose 0;JMP starts a
+    // block, so A isn't known when it's compiled: from the @ before
+    // it, which halts, and from elsewhere with A pointing at the jump
+    // itself, which loops.
+    private static final String[] BLOCK_START_HALTS = {
+            "@3\nD=A\n@2\n0;JMP\n", "@3\n0;JMP\n@2\n0;JMP\n"};
+
+    // The same program, interpreted and compiled, with each budget.
+    private static void assertSameRun(short[] rom) {
+        for (long budget : new long[] {13, 5000, 100000}) {
+            HackEmulator interpreted = new HackEmulator(rom);
+            HackEmulator compiled = new HackEmulator(rom);
+
+            assertEquals(interpreted.run(budget),
+                    compiled.runCompiled(budget));
+            assertArrayEquals(interpreted.ram(), compiled.ram());
+            assertEquals(interpreted.pc(), compiled.pc());
+            assertEquals(interpreted.a(), compiled.a());
+            assertEquals(interpreted.d(), compiled.d());
+            assertEquals(interpreted.halted(), compiled.halted());
+        }
+    }
+
+    // Random instructions, jumping all over, including into the
+    // middle of blocks and through computed addresses.
+    @Test
+    public void testCompiledMatchesInterpreted() {
+        for (String asm : BLOCK_START_HALTS) {
+            assertSameRun(HackAssembler.assemble(asm.getBytes()));
+        }
+
+        HackEmulator halting = load(BLOCK_START_HALTS[0]);
+        assertEquals(4, halting.runCompiled(1000));
+        assertTrue(halting.halted());
+
+        Random random = new Random(384);
+
+        for (int trial = 0; trial < 20; trial++) {
+            short[] rom = new short[100 + random.nextInt(2000)];
+            for (int i = 0; i < rom.length; i++) {
+                rom[i] = random.nextInt(3) == 0 ?
+                        (short) random.nextInt(rom.length + 5) :
+                        (short) (0xE000 | random.nextInt(0x2000));
+            }
+
+            assertSameRun(rom);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package emulator.test;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.*;
+
+// Runs --intrinsics code, which has no OS to fall back on.
+public class IntrinsicsTest {
+
+    private static final int[] VALUES = {0, 1, -1, 7, -7, 181, -300,
+            12345, 32767, -32768};
+
+    // Sys.init computing x op y into temp 0 (RAM[5]), then halting.
+    private static short run(int x, int y, String call) {
+        return TestRun.runToTemp0("function Sys.init 0\n" + push(x) +
+                push(y) + call + "\npop temp 0\nlabel HALT\ngoto HALT\n",
+                "--intrinsics");
+    }
+
+    private static String push(int n) {
+        if (n == -32768) return "push constant 32767\nnot\n";
+        return n < 0 ? "push constant " + -n + "\nneg\n" :
+                "push constant " + n + "\n";
+    }
+
+    @Test
+    public void testMultiply() {
+        for (int x : VALUES) {
+            for (int y : VALUES) {
+                assertEquals((short) (x * y),
+                        run(x, y, "call Math.multiply 2"));
+            }
+            assertEquals((short) (x * 8), run(8, x, "call Math.multiply 2"));
+        }
+    }
+
+    @Test
+    public void testDivide() {
+        for (int x : VALUES) {
+            for (int y : new int[] {1, 2, 16, 16384}) {
+                assertEquals((short) (x / y),
+                        run(x, y, "call Math.divide 2"));
+            }
+        }
+    }
+
+    @Test
+    public void testPeekPoke() {
+        assertEquals(-7, run(3000, -7, "call Memory.poke 2\npop temp 0\n" +
+                "push constant 3000\ncall Memory.peek 1"));
+    }
+}
@@ -0,0 +1,59 @@
+package emulator.test;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.*;
+
+import emulator.Profiler;
+import vmtranslator.CodeWriter;
+import vmtranslator.test.TestCode;
+
+public class ProfilerTest {
+
+    // Sys.init calls Main.count(3), which counts down by calling
+    // itself, and loops back to its first label without recursing.
+    private static final String SOURCE = "function Sys.init 0\n" +
+            "push constant 3\ncall Main.count 1\npop temp 0\n" +
+            "label HALT\ngoto HALT\n" +
+            "function Main.count 0\nlabel TOP\npush argument 0\n" +
+            "if-goto MORE\npush constant 0\nreturn\nlabel MORE\n" +
+            "push argument 0\npush constant 1\nsub\npop argument 0\n" +
+            "push argument 0\npush constant 1\nlt\nif-goto TOP\n" +
+            "push argument 0\ncall Main.count 1\nreturn\n";
+
+    private static long cycles;
+
+    private static Profiler profile(String flags) {
+        CodeWriter writer = TestCode.translateProgram(SOURCE,
+                "--source-map", flags);
+        Profiler profiler = new Profiler(TestRun.load(writer),
+                writer.sourceMap());
+        cycles = profiler.run(100_000);
+        return profiler;
+    }
+
+    @Test
+    public void testCycles() {
+        Profiler profiler = profile("");
+        long total = profiler.functionCycles().values().stream()
+                .mapToLong(n -> n).sum();
+
+        assertTrue(cycles < 100_000);
+        assertEquals(cycles, total);
+        assertTrue(profiler.functionCycles().get("Main.count") > 0);
+        assertEquals(total, profiler.lineCycles().values().stream()
+                .mapToLong(n -> n).sum());
+    }
+
+    @Test
+    public void testFolded() {
+        for (String flags : new String[] {"", "--compact-calls"}) {
+            String folded = profile(flags).folded();
+
+            assertTrue(folded.contains(
+                    "(bootstrap);Sys.init;Main.count;Main.count;" +
+                    "Main.count "));
+            assertFalse(folded.contains(
+                    "Main.count;Main.count;Main.count;Main.count"));
+        }
+    }
+}
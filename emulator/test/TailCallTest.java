@@ -0,0 +1,96 @@
+package emulator.test;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.*;
+
+public class TailCallTest {
+
+    // Main.sum(n, total) adds n, n - 1, ... 1 to total by calling
+    // itself, 20000 deep (frames for that don't fit in the stack).
+    private static final String SUM = "function Main.sum 1\n" +
+            "push argument 0\nif-goto MORE\npush argument 1\nreturn\n" +
+            "label MORE\npush argument 0\npop local 0\n" +
+            "push local 0\npush constant 1\nsub\n" +
+            "push argument 1\npush local 0\nadd\n" +
+            "call Main.sum 2\nreturn\n";
+
+    // Main.even(n) and Main.odd(n) call each other.
+    private static final String EVEN_ODD = "function Main.even 0\n" +
+            "push argument 0\nif-goto MORE_E\npush constant 1\nreturn\n" +
+            "label MORE_E\npush argument 0\npush constant 1\nsub\n" +
+            "call Main.odd 1\nreturn\n" +
+            "function Main.odd 0\n" +
+            "push argument 0\nif-goto MORE_O\npush constant 0\nreturn\n" +
+            "label MORE_O\npush argument 0\npush constant 1\nsub\n" +
+            "call Main.even 1\nreturn\n";
+
+    // Main.spread(a) calls Main.add3(a, a + 1, a + 2), which has more
+    // arguments than it has room for, and Main.add3 calls
+    // Main.twice(a + b + c), which has fewer.
+    private static final String SPREAD = "function Main.spread 0\n" +
+            "push argument 0\npush argument 0\npush constant 1\nadd\n" +
+            "push argument 0\npush constant 2\nadd\n" +
+            "call Main.add3 3\nreturn\n" +
+            "function Main.add3 2\n" +
+            "push argument 0\npush argument 1\nadd\n" +
+            "push argument 2\nadd\ncall Main.twice 1\nreturn\n" +
+            "function Main.twice 0\n" +
+            "push argument 0\npush argument 0\nadd\nreturn\n";
+
+    // Main.shift(a0 ... a11) calls Main.weigh(a1 ... a11, a0), which
+    // adds up (i + 1) * ai.
+    private static final String WIDE = wide();
+
+    private static String wide() {
+        StringBuilder source = new StringBuilder("function Main.shift 0\n");
+        for (int i = 1; i <= 12; i++) {
+            source.append("push argument ").append(i % 12).append('\n');
+        }
+        source.append("call Main.weigh 12\nreturn\n")
+                .append("function Main.weigh 0\npush constant 0\n");
+        for (int i = 0; i < 12; i++) {
+            for (int j = 0; j <= i; j++) {
+                source.append("push argument ").append(i)
+                        .append("\nadd\n");
+            }
+        }
+        return source.append("return\n").toString();
+    }
+
+    // Sys.init computing call into temp 0 (RAM[5]), then halting.
+    private static short run(String call, String functions,
+            String flags) {
+        return TestRun.runToTemp0("function Sys.init 0\n" + call +
+                "\npop temp 0\nlabel HALT\ngoto HALT\n" + functions, flags);
+    }
+
+    @Test
+    public void testDeepRecursion() {
+        for (String flags : new String[] {"--tail-calls",
+                "--tail-calls --compact-calls --cache-tos --peephole"}) {
+            assertEquals((short) (20000 * 20001 / 2), run(
+                    "push constant 20000\npush constant 0\n" +
+                    "call Main.sum 2", SUM, flags));
+            assertEquals(1, run("push constant 10000\ncall Main.even 1",
+                    EVEN_ODD, flags));
+        }
+    }
+
+    @Test
+    public void testArgumentCounts() {
+        for (String flags : new String[] {"", "--tail-calls",
+                "--tail-calls --compact-calls"}) {
+            assertEquals(36, run("push constant 5\ncall Main.spread 1",
+                    SPREAD, flags));
+
+            StringBuilder call = new StringBuilder();
+            int expected = 0;
+            for (int i = 0; i < 12; i++) {
+                call.append("push constant ").append(i + 10).append('\n');
+                expected += i == 11 ? 12 * 10 : (i + 1) * (i + 11);
+            }
+            assertEquals(expected, run(call + "call Main.shift 12", WIDE,
+                    flags));
+        }
+    }
+}
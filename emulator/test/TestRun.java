@@ -0,0 +1,35 @@
+package emulator.test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import assembler.HackAssembler;
+import emulator.HackEmulator;
+import vmtranslator.CodeWriter;
+import vmtranslator.test.TestCode;
+
+// Running translated VM code, for the tests.
+public class TestRun {
+
+    // Enough for every test program to halt.
+    private static final long MAX_CYCLES = 10_000_000;
+
+    public static HackEmulator load(CodeWriter writer) {
+        return new HackEmulator(HackAssembler.assemble(
+                writer.toByteArray()));
+    }
+
+    // Runs source, a program with Sys.init that halts.
+    public static HackEmulator runToHalt(String source, String... flags) {
+        HackEmulator emulator = load(TestCode.translateProgram(source,
+                flags));
+        emulator.run(MAX_CYCLES);
+        assertTrue(emulator.halted());
+        return emulator;
+    }
+
+    // The same for a program that leaves its result in temp 0, and
+    // returns the result (RAM[5]).
+    public static short runToTemp0(String source, String... flags) {
+        return runToHalt(source, flags).ram()[5];
+    }
+}
@@ -0,0 +1,248 @@
+//Written by David Owen and Noah Barrall
+
+package vmtranslator;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+// Collects Hack assembly as ASCII bytes in one reusable buffer.
+// Constant instructions are encoded once (see encode) and copied in,
+// numbers are written digit by digit, and the buffer goes out to the
+// channel in large blocks. Without a channel everything stays in
+// memory, e.g. for one file's code that's appended to another writer
+// later.
+public class AsmWriter {
+
+    private static final int BLOCK_SIZE = 1 << 16;
+    private static final byte[] INDENT = encodeText("    ");
+    private static final byte[] COMMENT = encodeText("\n    // ");
+
+    private final WritableByteChannel channel;
+    private byte[] buffer = new byte[BLOCK_SIZE];
+    private int position;
+    private int instructionCount;
+
+    public AsmWriter(String filename) throws IOException {
+        channel = FileChannel.open(Path.of(filename),
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    public AsmWriter(WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    // Keeps everything in memory.
+    public AsmWriter() {
+        channel = null;
+    }
+
+    // The full line for an instruction, e.g. "    D=M\n".
+    public static byte[] encode(String instruction) {
+        return encodeText("    " + instruction + "\n");
+    }
+
+    private static byte[] encodeText(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    // Number of instructions (not labels or comments) written so far,
+    // which is also the ROM address of the next one.
+    public int instructionCount() {
+        return instructionCount;
+    }
+
+    public void instruction(byte[] encoded) {
+        write(encoded, 0, encoded.length);
+        instructionCount++;
+    }
+
+    public void address(int value) {
+        write(INDENT, 0, INDENT.length);
+        write('@');
+        write(value);
+        write('\n');
+        instructionCount++;
+    }
+
+    public void address(String symbol) {
+        write(INDENT, 0, INDENT.length);
+        write('@');
+        write(symbol);
+        write('\n');
+        instructionCount++;
+    }
+
+    // @symbolN, e.g. @RETURN_3, without building the String.
+    public void address(String symbol, int suffix) {
+        write(INDENT, 0, INDENT.length);
+        write('@');
+        write(symbol);
+        write(suffix);
+        write('\n');
+        instructionCount++;
+    }
+
+    public void address(String prefix, String symbol, int suffix) {
+        write(INDENT, 0, INDENT.length);
+        write('@');
+        write(prefix);
+        write(symbol);
+        write(suffix);
+        write('\n');
+        instructionCount++;
+    }
+
+    public void label(String name) {
+        write('(');
+        write(name);
+        write(')');
+        write('\n');
+    }
+
+    public void label(String prefix, String name, int suffix) {
+        write('(');
+        write(prefix);
+        write(name);
+        write(suffix);
+        write(')');
+        write('\n');
+    }
+
+    // A blank line and then "    // text".
+    public void comment(String text) {
+        write(COMMENT, 0, COMMENT.length);
+        write(text);
+        write('\n');
+    }
+
+    public void comment(String text, String name) {
+        write(COMMENT, 0, COMMENT.length);
+        write(text);
+        write(name);
+        write('\n');
+    }
+
+    public void comment(String text, int n) {
+        write(COMMENT, 0, COMMENT.length);
+        write(text);
+        write(n);
+        write('\n');
+    }
+
+    // Copies everything other has written (it must be an in-memory
+    // writer).
+    public void append(AsmWriter other) {
+        other.flush();
+        write(other.buffer, 0, other.position);
+        instructionCount += other.instructionCount;
+    }
+
+    // Copies code written elsewhere, e.g. a cached fragment,
+    // counting the instructions in it.
+    public void append(byte[] code) {
+        write(code, 0, code.length);
+        boolean lineStart = true;
+
+        // A line is an instruction unless it's blank, a label or a
+        // comment.
+        for (byte b : code) {
+            if (b == '\n') {
+                lineStart = true;
+            } else if (lineStart && b != ' ') {
+                lineStart = false;
+                if (b != '(' && b != '/') instructionCount++;
+            }
+        }
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, position);
+    }
+
+    private void ensureRoom(int length) {
+        if (position + length <= buffer.length) return;
+
+        if (channel != null) {
+            writeBlock();
+        }
+
+        if (position + length > buffer.length) {
+            buffer = Arrays.copyOf(buffer,
+                Math.max(buffer.length * 2, position + length));
+        }
+    }
+
+    private void write(byte[] bytes, int offset, int length) {
+        ensureRoom(length);
+        System.arraycopy(bytes, offset, buffer, position, length);
+        position += length;
+    }
+
+    private void write(char c) {
+        ensureRoom(1);
+        buffer[position++] = (byte) c;
+    }
+
+    private void write(String s) {
+        int length = s.length();
+        ensureRoom(length);
+
+        for (int i = 0; i < length; i++) {
+            buffer[position++] = (byte) s.charAt(i);
+        }
+    }
+
+    private void write(int n) {
+        ensureRoom(11);
+
+        if (n < 0) {
+            buffer[position++] = '-';
+            n = -n;
+        }
+
+        int digits = 1;
+        for (int m = n; m >= 10; m /= 10) digits++;
+
+        for (int i = position + digits - 1; i >= position; i--) {
+            buffer[i] = (byte) ('0' + n % 10);
+            n /= 10;
+        }
+
+        position += digits;
+    }
+
+    public void flush() {
+        writeBlock();
+    }
+
+    private void writeBlock() {
+        if (channel == null) return;
+
+        try {
+            ByteBuffer block = ByteBuffer.wrap(buffer, 0, position);
+            while (block.hasRemaining()) channel.write(block);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        position = 0;
+    }
+
+    public void close() {
+        flush();
+
+        try {
+            if (channel != null) channel.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+//Written by David Owen and Noah Barrall
+
+package vmtranslator;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+// Translates many programs in one JVM, so JVM startup and warm-up are
+// paid once instead of per program:
+//
+//   java vmtranslator.BatchTranslator [options] dir... 'projects/*'
+//       [--list=dirs.txt] [--threads=n]
+//
+// Each source (a directory or a .vm file, as for VmTranslator) is
+// translated with VmTranslator.translate on a fixed pool of threads,
+// one per processor unless --threads says otherwise. Arguments with
+// glob characters are matched against the directories under their
+// fixed part, so they work without the shell expanding them, and
+// --list reads sources one per line. Every other option is passed on
+// to VmTranslator. Reports (e.g. --peephole's) from programs
+// translated side by side can come out interleaved.
+public class BatchTranslator {
+
+    // How one source went: its time, and the error if it failed.
+    public record Result(String source, long nanos, String error) {}
+
+    public static void main(String[] args)
+        throws IOException, InterruptedException {
+        TranslatorOptions options = new TranslatorOptions();
+        List<String> sources = new ArrayList<>();
+        int threads = Runtime.getRuntime().availableProcessors();
+
+        for (String arg : args) {
+            if (options.parse(arg)) continue;
+
+            if (arg.startsWith("--threads=")) {
+                threads = Integer.parseInt(arg.substring(10));
+            } else if (arg.startsWith("--list=")) {
+                for (String line : Files.readAllLines(
+                    Path.of(arg.substring(7)))) {
+                    if (!line.isBlank()) sources.add(line.strip());
+                }
+            } else if (isGlob(arg)) {
+                sources.addAll(expand(arg));
+            } else {
+                sources.add(arg);
+            }
+        }
+
+        long start = System.nanoTime();
+        List<Result> results = translateAll(sources, options, threads);
+        long wall = System.nanoTime() - start;
+
+        long total = 0;
+        int failed = 0;
+
+        for (Result result : results) {
+            total += result.nanos();
+            System.out.printf("%10.1f ms  %s%s%n", result.nanos() / 1e6,
+                result.source(), result.error() == null ? "" :
+                    "  FAILED: " + result.error());
+            if (result.error() != null) failed++;
+        }
+
+        System.out.printf("%d programs (%d failed) in %.1f ms on %d " +
+            "threads, %.1f ms of translating%n", results.size(), failed,
+            wall / 1e6, threads, total / 1e6);
+
+        if (failed > 0) System.exit(1);
+    }
+
+    // Translates each source, returning how each went, in order.
+    public static List<Result> translateAll(List<String> sources,
+        TranslatorOptions options, int threads)
+        throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Callable<Result>> tasks = new ArrayList<>();
+
+        for (String source : sources) {
+            tasks.add(() -> translate(source, options));
+        }
+
+        List<Result> results = new ArrayList<>();
+
+        try {
+            for (Future<Result> future : executor.invokeAll(tasks)) {
+                results.add(future.get());
+            }
+        } catch (ExecutionException e) {
+            // translate catches exceptions, so this is an Error.
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+
+        return results;
+    }
+
+    private static Result translate(String source,
+        TranslatorOptions options) {
+        long start = System.nanoTime();
+        String error = null;
+
+        try {
+            if (!VmTranslator.translate(source, options)) {
+                error = "too big for ROM";
+            }
+        } catch (IOException | RuntimeException e) {
+            error = e.toString();
+        }
+
+        return new Result(source, System.nanoTime() - start, error);
+    }
+
+    private static boolean isGlob(String arg) {
+        return arg.matches(".*[*?\\[{].*");
+    }
+
+    // The directories matching pattern, sorted.
+    public static List<String> expand(String pattern) throws IOException {
+        pattern = pattern.replaceAll("/+$", "");
+        PathMatcher matcher =
+            FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+
+        // Only the directory before the first glob character is walked,
+        // and only as deep as the pattern goes (unless it has **).
+        int glob = 0;
+        while ("*?[{".indexOf(pattern.charAt(glob)) < 0) glob++;
+        int slash = pattern.lastIndexOf('/', glob);
+        Path base = Path.of(slash < 0 ? "" : pattern.substring(0, slash + 1));
+        String rest = pattern.substring(slash + 1);
+        int depth = rest.contains("**") ? Integer.MAX_VALUE :
+            rest.split("/").length;
+
+        if (!Files.isDirectory(base)) return List.of();
+
+        try (Stream<Path> paths = Files.walk(base, depth)) {
+            return paths.filter(Files::isDirectory)
+                .filter(matcher::matches)
+                .map(Path::toString)
+                .sorted()
+                .toList();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+//Written by David Owen and Noah Barrall
+
+package vmtranslator;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Which functions call which, across all the files of a program.
+public class CallGraph {
+
+    private final List<VmCode> program;
+    private final Map<String, VmFunction> functions = new LinkedHashMap<>();
+
+    public CallGraph(List<VmCode> program) {
+        this.program = program;
+
+        for (VmCode code : program) {
+            for (VmFunction function : VmFunction.functionsOf(code)) {
+                functions.put(function.name(), function);
+            }
+        }
+    }
+
+    public VmFunction function(String name) {
+        return functions.get(name);
+    }
+
+    public List<VmFunction> functions() {
+        return new ArrayList<>(functions.values());
+    }
+
+    // Functions called from function, in order of first call. Calls
+    // to functions that aren't in the program are left out.
+    public List<VmFunction> callees(VmFunction function) {
+        List<VmFunction> callees = new ArrayList<>();
+        VmCode code = function.code();
+
+        for (int i = function.start(); i < function.end(); i++) {
+            if (code.opcode(i) != Opcode.CALL) continue;
+            VmFunction callee = functions.get(code.symbol(i));
+            if (callee != null && !callees.contains(callee)) {
+                callees.add(callee);
+            }
+        }
+
+        return callees;
+    }
+
+    // Names of the functions entry can end up calling, entry included.
+    public Set<String> reachableFrom(String entry) {
+        Set<String> reached = new HashSet<>();
+        Deque<VmFunction> work = new ArrayDeque<>();
+
+        if (functions.containsKey(entry)) {
+            reached.add(entry);
+            work.add(functions.get(entry));
+        }
+
+        while (!work.isEmpty()) {
+            for (VmFunction callee : callees(work.remove())) {
+                if (reached.add(callee.name())) work.add(callee);
+            }
+        }
+
+        return reached;
+    }
+
+    // The program with only the functions in keep (and anything in a
+    // file before its first function).
+    public List<VmCode> retain(Set<String> keep) {
+        List<VmCode> result = new ArrayList<>();
+
+        for (VmCode code : program) {
+            VmCode kept = new VmCode(code.name());
+            int end = code.size();
+            List<VmFunction> fileFunctions = VmFunction.functionsOf(code);
+            if (!fileFunctions.isEmpty()) end = fileFunctions.get(0).start();
+            kept.copy(code, 0, end);
+
+            for (VmFunction function : fileFunctions) {
+                if (keep.contains(function.name())) {
+                    kept.copy(code, function.start(), function.end());
+                }
+            }
+
+            result.add(kept);
+        }
+
+        return result;
+    }
+}
@@ -5,376 +5,1489 @@ package vmtranslator;
 import static vmtranslator.CommandType.*;
 
 import java.io.IOException;
-import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.function.Consumer;
 
 public class CodeWriter {
 
-    private PrintStream out;
+    // Constant instructions, encoded once (see AsmWriter.encode).
+    private static final byte[] D_A = AsmWriter.encode("D=A");
+    private static final byte[] D_M = AsmWriter.encode("D=M");
+    private static final byte[] A_M = AsmWriter.encode("A=M");
+    private static final byte[] M_D = AsmWriter.encode("M=D");
+    private static final byte[] A_D_PLUS_M = AsmWriter.encode("A=D+M");
+    private static final byte[] D_D_PLUS_M = AsmWriter.encode("D=D+M");
+    private static final byte[] D_D_MINUS_A = AsmWriter.encode("D=D-A");
+    private static final byte[] A_D_MINUS_A = AsmWriter.encode("A=D-A");
+    private static final byte[] D_M_MINUS_D = AsmWriter.encode("D=M-D");
+    private static final byte[] A_M_MINUS_D = AsmWriter.encode("A=M-D");
+    private static final byte[] M_D_PLUS_1 = AsmWriter.encode("M=D+1");
+    private static final byte[] D_D_PLUS_A = AsmWriter.encode("D=D+A");
+    private static final byte[] AM_D_PLUS_M = AsmWriter.encode("AM=D+M");
+    private static final byte[] D_D_MINUS_1 = AsmWriter.encode("D=D-1");
+    private static final byte[] M_M_PLUS_1 = AsmWriter.encode("M=M+1");
+    private static final byte[] AM_M_PLUS_1 = AsmWriter.encode("AM=M+1");
+    private static final byte[] M_M_MINUS_1 = AsmWriter.encode("M=M-1");
+    private static final byte[] A_M_MINUS_1 = AsmWriter.encode("A=M-1");
+    private static final byte[] A_M_PLUS_1 = AsmWriter.encode("A=M+1");
+    private static final byte[] A_D_MINUS_M = AsmWriter.encode("A=D-M");
+    private static final byte[] M_D_MINUS_A = AsmWriter.encode("M=D-A");
+    private static final byte[] AM_M_MINUS_1 = AsmWriter.encode("AM=M-1");
+    private static final byte[] A_A_MINUS_1 = AsmWriter.encode("A=A-1");
+    private static final byte[] M_M_PLUS_D = AsmWriter.encode("M=M+D");
+    private static final byte[] M_M_MINUS_D = AsmWriter.encode("M=M-D");
+    private static final byte[] M_M_AND_D = AsmWriter.encode("M=M&D");
+    private static final byte[] M_M_OR_D = AsmWriter.encode("M=M|D");
+    private static final byte[] M_NEG_M = AsmWriter.encode("M=-M");
+    private static final byte[] M_NOT_M = AsmWriter.encode("M=!M");
+    private static final byte[] M_TRUE = AsmWriter.encode("M=-1");
+    private static final byte[] M_FALSE = AsmWriter.encode("M=0");
+    private static final byte[] M_ONE = AsmWriter.encode("M=1");
+    private static final byte[] A_A_PLUS_1 = AsmWriter.encode("A=A+1");
+    private static final byte[] D_D_AND_M = AsmWriter.encode("D=D&M");
+    private static final byte[] D_D_OR_M = AsmWriter.encode("D=D|M");
+    private static final byte[] D_NEG_D = AsmWriter.encode("D=-D");
+    private static final byte[] D_NOT_D = AsmWriter.encode("D=!D");
+    private static final byte[] D_TRUE = AsmWriter.encode("D=-1");
+    private static final byte[] D_FALSE = AsmWriter.encode("D=0");
+    private static final byte[] D_ONE = AsmWriter.encode("D=1");
+    private static final byte[] JMP = AsmWriter.encode("0;JMP");
+    private static final byte[] JNE = AsmWriter.encode("D;JNE");
+    private static final byte[] JEQ = AsmWriter.encode("D;JEQ");
+    private static final byte[] JLT = AsmWriter.encode("D;JLT");
+    private static final byte[] JGT = AsmWriter.encode("D;JGT");
+    private static final byte[] JGE = AsmWriter.encode("D;JGE");
+    private static final byte[] JLE = AsmWriter.encode("D;JLE");
+
+    // OS functions --intrinsics writes as Hack code in place of calls
+    // to them, with their number of arguments. Math.divide only when
+    // dividing by a power of 2 (see intrinsicLength).
+    private static final Map<String, Integer> INTRINSICS = Map.of(
+        "Math.multiply", 2,
+        "Math.divide", 2,
+        "Memory.peek", 1,
+        "Memory.poke", 2);
+
+    // Largest index reached by stepping A (A=M+1, A=A+1, ...) instead
+    // of adding, for a pop of the cached top of the stack, a pop and a
+    // push. Stepping takes an instruction per index past 1. Adding
+    // takes 10 more instructions than index 0 for the cached pop
+    // (which goes through R15 and R13), 3 more for a pop and 2 more
+    // for a push (@index, D=A, A=D+M in place of A=M). Each limit
+    // keeps stepping no longer than adding.
+    private static final int MAX_INDEX_STEPS = 9;
+    private static final int MAX_POP_STEPS = 4;
+    private static final int MAX_PUSH_STEPS = 2;
+
+    // Locals up to this many are zeroed by straight-line code, two
+    // instructions (and cycles) each. Past that a loop is smaller, at
+    // 9 instructions, but takes 7 cycles a local.
+    private static final int MAX_UNROLLED_LOCALS = 8;
+
+    // "push local " etc., indexed by Segment ordinal.
+    private static final String[] PUSH_COMMENTS = comments("push ");
+    private static final String[] POP_COMMENTS = comments("pop ");
+
+    private AsmWriter out;
     private String filename;
+    private String staticPrefix;  // filename + "."
     private int labelCount;
+    private String labelPrefix;
+    private TranslatorOptions options;
+    private boolean tosInD;  // See spillTos.
+    private RomProfile profile;  // Only with --profile.
+    private SourceMap sourceMap;  // Only with --source-map.
+    private String function = "(no function)";  // For both.
+
+    // Shared routines the intrinsics have called, to write at the end.
+    private boolean multiplyUsed;
+    private boolean dividePow2Used;
+
+    // For the compact calling convention report.
+    private int callCount;
+    private int callSiteSize;
+    private int returnCount;
 
     public CodeWriter(String filename) throws IOException {
-        out = new PrintStream(filename);
-        this.filename = filename.substring(
-            filename.lastIndexOf("/") + 1, filename.length() - 4);
+        this(filename, new TranslatorOptions());
+    }
+
+    public CodeWriter(String filename, TranslatorOptions options)
+        throws IOException {
+        out = options.peephole ?
+            new PeepholeWriter(filename, PeepholeWriter.DEFAULT_RULES) :
+            new AsmWriter(filename);
+        setFilename(filename.substring(
+            filename.lastIndexOf("/") + 1, filename.length() - 4));
         labelCount = 0;
+        labelPrefix = "";
+        this.options = options;
+        if (options.profile) profile = new RomProfile();
+        if (options.sourceMap) sourceMap = new SourceMap();
+    }
+
+    // Writes one file's code into its own AsmWriter, e.g. an in-memory
+    // one that is later appended to the main writer. Generated labels
+    // get the file name as a prefix so writers running side by side
+    // can't hand out the same RETURN_n or END_n.
+    public CodeWriter(AsmWriter out, String filename) {
+        this(out, filename, new TranslatorOptions());
+    }
+
+    public CodeWriter(AsmWriter out, String filename,
+        TranslatorOptions options) {
+        this.out = out;
+        setFilename(filename);
+        labelCount = 0;
+        labelPrefix = filename + "$";
+        this.options = options;
+        if (options.profile) profile = new RomProfile();
+        if (options.sourceMap) sourceMap = new SourceMap();
+    }
+
+    private static String[] comments(String command) {
+        Segment[] segments = Segment.values();
+        String[] comments = new String[segments.length];
+
+        for (Segment segment : segments) {
+            comments[segment.ordinal()] = command + segment + " ";
+        }
+
+        return comments;
     }
 
     public void setFilename(String filename) {
         this.filename = filename;
+        staticPrefix = filename + ".";
     }
 
+    // With compact calls, the shared routines go at the end, where
+    // nothing can fall into them.
     public void close() {
+        profiled("(spill)", this::spillTos);
+
+        if (options.compactCalls) {
+            function = "(compact call routines)";
+            mark(SourceMap.NO_FILE, 0, function);
+            profiled("$$CALL", this::writeCallRoutine);
+            profiled("$$RETURN", this::writeReturnRoutine);
+        }
+
+        if (multiplyUsed || dividePow2Used) {
+            function = "(intrinsic routines)";
+            mark(SourceMap.NO_FILE, 0, function);
+            if (multiplyUsed) {
+                profiled("$$MULTIPLY", this::writeMultiplyRoutine);
+            }
+            if (dividePow2Used) {
+                profiled("$$DIVIDE_POW2", this::writeDividePow2Routine);
+            }
+        }
+
         out.close();
     }
+
+    // Copies code already translated by other (see the AsmWriter
+    // constructor) into this writer's output.
+    public void append(CodeWriter other) {
+        if (sourceMap != null) {
+            sourceMap.add(other.sourceMap, out.instructionCount());
+        }
+
+        out.append(other.out);
+        callCount += other.callCount;
+        callSiteSize += other.callSiteSize;
+        returnCount += other.returnCount;
+        multiplyUsed |= other.multiplyUsed;
+        dividePow2Used |= other.dividePow2Used;
+        if (profile != null) profile.add(other.profile);
+    }
     
+    // Copies a cached translation, with its source map and profile
+    // if this writer keeps them.
+    public void append(TranslationCache.Entry entry) {
+        if (sourceMap != null) {
+            sourceMap.add(entry.sourceMap(), out.instructionCount());
+        }
+        if (profile != null) profile.add(entry.profile());
+        append(entry.code());
+    }
+
+    // Copies code translated elsewhere, e.g. a cached fragment. The
+    // intrinsics' routines it calls are found by looking for their
+    // addresses, so only those are written at the end.
+    public void append(byte[] code) {
+        out.append(code);
+
+        if (options.intrinsics) {
+            String text = new String(code, StandardCharsets.US_ASCII);
+            multiplyUsed |= text.contains("@$$MULTIPLY\n");
+            dividePow2Used |= text.contains("@$$DIVIDE_POW2\n");
+        }
+    }
+
+    public byte[] toByteArray() {
+        return out.toByteArray();
+    }
+
     public void writePushPop(CommandType commandType,
         String segment, int index) {
-        out.println();
+        writePushPop(commandType, Segment.of(segment), index);
+    }
+
+    private String segmentBase(Segment segment) {
+        switch (segment) {
+            case LOCAL: return "LCL";
+            case ARGUMENT: return "ARG";
+            case THIS: return "THIS";
+            default: return "THAT";
+        }
+    }
+
+    public void writePushPop(CommandType commandType,
+        Segment segment, int index) {
         
-        if (commandType.equals(C_PUSH)) {
-            out.println("    // push " + segment + " " + index);
-
-            if (segment.equals("constant")) {
-                out.println("    @" + index);
-                out.println("    D=A");
-            
-            } else if (segment.equals("local") || segment.equals("argument") ||
-                segment.equals("this") || segment.equals("that")) {
-
-                out.println("    @" + index);
-                out.println("    D=A");
-
-                if (segment.equals("local")) {
-                    out.println("    @LCL");
-                } else if (segment.equals("argument")) {
-                    out.println("    @ARG");
-                } else if (segment.equals("this")) {
-                    out.println("    @THIS");
-                } else if (segment.equals("that")) {
-                    out.println("    @THAT");
-                }
+        if (commandType == C_PUSH) {
+            out.comment(PUSH_COMMENTS[segment.ordinal()], index);
+            spillTos();
 
-                out.println("    A=D+M");
-                out.println("    D=M");
+            // The ALU makes 0, 1 and -1 itself, so they can go straight
+            // onto the stack. Not with --peephole, whose rules look for
+            // the pushed value in D.
+            if (segment == Segment.CONSTANT && !options.cacheTos &&
+                !options.peephole && constant(index, true) != null) {
+                out.address("SP");
+                out.instruction(M_M_PLUS_1);
+                out.instruction(A_M_MINUS_1);
+                out.instruction(constant(index, false));
+                return;
+            }
 
-            } else if (segment.equals("pointer") || segment.equals("temp")) {
+            loadD(segment, index);
 
-                if (segment.equals("pointer")) {
-                    out.println("    @" + (3 + index));
-                } else if (segment.equals("temp")) {
-                    out.println("    @" + (5 + index));
-                }
+            if (options.cacheTos) {
+                tosInD = true;
+            } else {
+                // push D
+                out.address("SP");
+                out.instruction(M_M_PLUS_1);
+                out.instruction(A_M_MINUS_1);
+                out.instruction(M_D);
+            }
+        
+        } else if (commandType == C_POP) {
+            out.comment(POP_COMMENTS[segment.ordinal()], index);
 
-                out.println("    D=M");
-            
-            } else if (segment.equals("static")) {
-                out.println("    @" + filename + "." + index);
-                out.println("    D=M");
+            if (tosInD) {
+                popCachedTos(segment, index);
+                return;
             }
 
-            // push D
-            out.println("    @SP");
-            out.println("    M=M+1");
-            out.println("    A=M-1");
-            out.println("    M=D");
-        
-        } else if (commandType.equals(C_POP)) {
-            out.println("    // pop " + segment + " " + index);
-
-            if (segment.equals("local") || segment.equals("argument") ||
-                segment.equals("this") || segment.equals("that")) {
-                
-                out.println("    @" + index);
-                out.println("    D=A");
-
-                if (segment.equals("local")) {
-                    out.println("    @LCL");
-                } else if (segment.equals("argument")) {
-                    out.println("    @ARG");
-                } else if (segment.equals("this")) {
-                    out.println("    @THIS");
-                } else if (segment.equals("that")) {
-                    out.println("    @THAT");
+            switch (segment) {
+                case LOCAL:
+                case ARGUMENT:
+                case THIS:
+                case THAT:
+                    if (index <= MAX_POP_STEPS) {
+                        out.address("SP");
+                        out.instruction(AM_M_MINUS_1);
+                        out.instruction(D_M);
+                        pointAt(segment, index);
+                        out.instruction(M_D);
+                        break;
+                    }
+
+                    // D = address, then address + value, from which
+                    // both come back without going through R13.
+                    out.address(index);
+                    out.instruction(D_A);
+                    out.address(segmentBase(segment));
+                    out.instruction(D_D_PLUS_M);
+                    out.address("SP");
+                    out.instruction(AM_M_MINUS_1);
+                    out.instruction(D_D_PLUS_M);
+                    out.instruction(A_D_MINUS_M);
+                    out.instruction(M_D_MINUS_A);
+                    break;
+
+                case POINTER:
+                case TEMP:
+                    out.address("SP");
+                    out.instruction(AM_M_MINUS_1);
+                    out.instruction(D_M);
+                    out.address((segment == Segment.POINTER ? 3 : 5) +
+                        index);
+                    out.instruction(M_D);
+                    break;
+
+                case STATIC:
+                    out.address("SP");
+                    out.instruction(AM_M_MINUS_1);
+                    out.instruction(D_M);
+                    out.address(staticPrefix, index);
+                    out.instruction(M_D);
+                    break;
+
+                default:  // Can't pop into constant.
+                    break;
+            }
+        }
+    }
+
+    // D=k (or M=k) when the ALU can make k, else null.
+    private static byte[] constant(int k, boolean toD) {
+        switch (k) {
+            case 0: return toD ? D_FALSE : M_FALSE;
+            case 1: return toD ? D_ONE : M_ONE;
+            case -1: return toD ? D_TRUE : M_TRUE;
+            default: return null;
+        }
+    }
+
+    // A = the address of segment[index], by stepping from the base.
+    private void pointAt(Segment segment, int index) {
+        out.address(segmentBase(segment));
+        out.instruction(index == 0 ? A_M : A_M_PLUS_1);
+        for (int i = 1; i < index; i++) {
+            out.instruction(A_A_PLUS_1);
+        }
+    }
+
+    // D = segment[index]
+    private void loadD(Segment segment, int index) {
+        switch (segment) {
+            case CONSTANT:
+                if (constant(index, true) != null) {
+                    out.instruction(constant(index, true));
+                } else {
+                    out.address(index);
+                    out.instruction(D_A);
+                }
+                break;
+
+            case LOCAL:
+            case ARGUMENT:
+            case THIS:
+            case THAT:
+                if (index <= MAX_PUSH_STEPS) {
+                    pointAt(segment, index);
+                    out.instruction(D_M);
+                    break;
                 }
 
-                out.println("    D=D+M");
-                out.println("    @R13");
-                out.println("    M=D");
+                out.address(index);
+                out.instruction(D_A);
+                out.address(segmentBase(segment));
+                out.instruction(A_D_PLUS_M);
+                out.instruction(D_M);
+                break;
 
-                out.println("    @SP");
-                out.println("    AM=M-1");
-                out.println("    D=M");
+            case POINTER:
+                out.address(3 + index);
+                out.instruction(D_M);
+                break;
+
+            case TEMP:
+                out.address(5 + index);
+                out.instruction(D_M);
+                break;
+
+            case STATIC:
+                out.address(staticPrefix, index);
+                out.instruction(D_M);
+                break;
+        }
+    }
 
-                out.println("    @R13");
-                out.println("    A=M");
-                out.println("    M=D");
+    // With options.cacheTos, a push leaves its value in D instead of
+    // on the stack, and the next command can use it from there. These
+    // write it to the stack when the next command can't, e.g. before
+    // labels, jumps and calls, where code elsewhere expects the whole
+    // stack in RAM.
+    private void spillTos() {
+        if (!tosInD) return;
 
-            } else if (segment.equals("pointer") || segment.equals("temp")) {
+        out.address("SP");
+        out.instruction(M_M_PLUS_1);
+        out.instruction(A_M_MINUS_1);
+        out.instruction(M_D);
+        tosInD = false;
+    }
 
-                out.println("    @SP");
-                out.println("    AM=M-1");
-                out.println("    D=M");
+    // segment[index] = D, where D is the cached top of the stack.
+    private void popCachedTos(Segment segment, int index) {
+        tosInD = false;
 
-                if (segment.equals("pointer")) {
-                    out.println("    @" + (3 + index));
-                } else if (segment.equals("temp")) {
-                    out.println("    @" + (5 + index));
+        switch (segment) {
+            case LOCAL:
+            case ARGUMENT:
+            case THIS:
+            case THAT:
+                if (index <= MAX_INDEX_STEPS) {
+                    pointAt(segment, index);
+                    out.instruction(M_D);
+                } else {
+                    out.address("R15");
+                    out.instruction(M_D);
+                    out.address(index);
+                    out.instruction(D_A);
+                    out.address(segmentBase(segment));
+                    out.instruction(D_D_PLUS_M);
+                    out.address("R13");
+                    out.instruction(M_D);
+                    out.address("R15");
+                    out.instruction(D_M);
+                    out.address("R13");
+                    out.instruction(A_M);
+                    out.instruction(M_D);
                 }
+                break;
 
-                out.println("    M=D");
-            
-            } else if (segment.equals("static")) {
+            case POINTER:
+            case TEMP:
+                out.address((segment == Segment.POINTER ? 3 : 5) + index);
+                out.instruction(M_D);
+                break;
 
-                out.println("    @SP");
-                out.println("    AM=M-1");
-                out.println("    D=M");
+            case STATIC:
+                out.address(staticPrefix, index);
+                out.instruction(M_D);
+                break;
 
-                out.println("    @" + filename + "." + index);
-                out.println("    M=D");
-            }
+            default:  // Can't pop into constant.
+                break;
         }
     }
 
     public void writeLabel(String label) {
-        out.println("//Label " + label);
-        out.println("(" + label + ")");
-            
-        }
+        spillTos();
+        out.label(label);
+    }
     
     public void writeGoto(String label) {
-        out.println("@" + label);
-        out.println("    0;JMP");
-        }
-    
-
+        spillTos();
+        out.address(label);
+        out.instruction(JMP);
+    }
 
     public void writeIf(String label) {
-        out.println("    @SP");
-        out.println("    M=M-1");
-        out.println("    A=M");
-        out.println("    D=M");
-        out.println("@" + label);
-        out.println("    D;JNE");
+        if (tosInD) {
+            tosInD = false;
+            out.address(label);
+            out.instruction(JNE);
+            return;
         }
+
+        out.address("SP");
+        out.instruction(M_M_MINUS_1);
+        out.instruction(A_M);
+        out.instruction(D_M);
+        out.address(label);
+        out.instruction(JNE);
+    }
     
     public void writeFunction(String functionName, int numLocals){
-        out.println("//Label " + functionName);
-        out.println("(" + functionName + ")");
+        spillTos();
+        function = functionName;
+        out.comment(functionName);
+        out.label(functionName);
+        writeLocals(numLocals);
+    }
 
-        //Initialize local variables to 0
-        for (int i = 0; i < numLocals; i++) {
-            writePushPop(C_PUSH, "constant", 0);
+    // Pushes numLocals zeros, the function's local variables.
+    private void writeLocals(int numLocals) {
+        if (numLocals == 0) return;
+
+        if (numLocals > MAX_UNROLLED_LOCALS) {
+            out.address(numLocals);
+            out.instruction(D_A);
+            out.label(labelPrefix, "LOCALS_", labelCount);
+            out.address("SP");
+            out.instruction(AM_M_PLUS_1);
+            out.instruction(A_A_MINUS_1);
+            out.instruction(M_FALSE);
+            out.instruction(D_D_MINUS_1);
+            out.address(labelPrefix, "LOCALS_", labelCount++);
+            out.instruction(JGT);
+            return;
         }
 
+        // Move SP past all of them, then clear them going down. Up to
+        // 3, stepping SP is no longer than adding to it.
+        if (numLocals <= 3) {
+            out.address("SP");
+            for (int i = 1; i < numLocals; i++) {
+                out.instruction(M_M_PLUS_1);
+            }
+            out.instruction(AM_M_PLUS_1);
+        } else {
+            out.address(numLocals);
+            out.instruction(D_A);
+            out.address("SP");
+            out.instruction(AM_D_PLUS_M);
+        }
+
+        for (int i = 0; i < numLocals; i++) {
+            out.instruction(A_A_MINUS_1);
+            out.instruction(M_FALSE);
+        }
     }
 
     public void writeReturn() {
+        out.comment("return");
+        spillTos();
+
+        if (options.compactCalls) {
+            out.address("$$RETURN");
+            out.instruction(JMP);
+            returnCount++;
+        } else {
+            writeReturnBody();
+        }
+    }
+
+    private void writeReturnBody() {
         // R13 = LCL
-        out.println("    @LCL");
-        out.println("    D=M");
-        out.println("    @R13");
-        out.println("    M=D");
+        out.address("LCL");
+        out.instruction(D_M);
+        out.address("R13");
+        out.instruction(M_D);
 
         // R14 = M[R13 - 5]
-        out.println("    @5");
-        out.println("    A=D-A"); //5=LCL-5
-        out.println("    D=M"); //Storing LCL in D
-        out.println("    @R14"); 
-        out.println("    M=D");
+        out.address(5);
+        out.instruction(A_D_MINUS_A); //5=LCL-5
+        out.instruction(D_M); //Storing LCL in D
+        out.address("R14");
+        out.instruction(M_D);
 
         // SP--
-        out.println("    @SP"); 
-        out.println("    M=M-1"); //Decrementing stack pointer
+        out.address("SP");
+        out.instruction(M_M_MINUS_1); //Decrementing stack pointer
 
         // M[ARG] = M[SP]
-        out.println("    @SP"); //Loads SP to A
-        out.println("    A=M");
-        out.println("    D=M");
-        out.println("    @ARG"); //Loads ARG to A
-        out.println("    A=M");
-        out.println("    M=D");
+        out.address("SP"); //Loads SP to A
+        out.instruction(A_M);
+        out.instruction(D_M);
+        out.address("ARG"); //Loads ARG to A
+        out.instruction(A_M);
+        out.instruction(M_D);
 
         // SP = ARG + 1
-        out.println("    @ARG");
-        out.println("    D=M");
-        out.println("    @SP");
-        out.println("    M=D+1");
+        out.address("ARG");
+        out.instruction(D_M);
+        out.address("SP");
+        out.instruction(M_D_PLUS_1);
 
         // THAT = M[R13 - 1] // or R13--; THAT = M[R13]
-        out.println("    @R13");
-        out.println("    A=M-1");
-        out.println("    D=M");
-        out.println("    @THAT"); 
-        out.println("    M=D");
+        out.address("R13");
+        out.instruction(A_M_MINUS_1);
+        out.instruction(D_M);
+        out.address("THAT");
+        out.instruction(M_D);
 
         // THIS = M[R13 - 2] //    R13--; THIS = M[R13]
-        out.println("    @R13");
-        out.println("    D=M");
-        out.println("    @2");
-        out.println("    A=D-A");
-        out.println("    D=M");
-        out.println("    @THIS"); 
-        out.println("    M=D");
-
         // ARG = M[R13 - 3]  //    R13--; ARG = M[R13]
-        out.println("    @R13");
-        out.println("    D=M");
-        out.println("    @3");
-        out.println("    A=D-A");
-        out.println("    D=M");
-        out.println("    @ARG"); 
-        out.println("    M=D");
-
         // LCL = M[R13 - 4]  //    R13--; LCL = M[R13]
-        out.println("    @R13");
-        out.println("    D=M");
-        out.println("    @4");
-        out.println("    A=D-A");
-        out.println("    D=M");
-        out.println("    @LCL"); 
-        out.println("    M=D");
+        restoreFromFrame(2, "THIS");
+        restoreFromFrame(3, "ARG");
+        restoreFromFrame(4, "LCL");
 
         // goto R14
-        out.println("    @R14");
-        out.println("    A=M");
-        out.println("    0;JMP");
+        out.address("R14");
+        out.instruction(A_M);
+        out.instruction(JMP);
+    }
+
+    // pointer = M[R13 - offset]
+    private void restoreFromFrame(int offset, String pointer) {
+        out.address("R13");
+        out.instruction(D_M);
+        out.address(offset);
+        out.instruction(A_D_MINUS_A);
+        out.instruction(D_M);
+        out.address(pointer);
+        out.instruction(M_D);
+    }
+
+    // M[SP++] = M[pointer]
+    private void pushPointer(String pointer) {
+        out.address(pointer);
+        out.instruction(D_M);
+        out.address("SP");
+        out.instruction(A_M);
+        out.instruction(M_D);
+        out.address("SP");
+        out.instruction(M_M_PLUS_1);
     }
 
     public void writeCall(String functionName, int numArgs) {
+        out.comment("call ", functionName);
+        spillTos();
+
+        if (options.compactCalls) {
+            writeCompactCall(functionName, numArgs);
+            return;
+        }
 
         // M[SP++] = RETURN_n (n to make a unique label)
-        out.println("    @RETURN_" + labelCount); 
-        out.println("    D=A"); //Save return address to the stack
-        out.println("    @SP");
-        out.println("    A=M"); 
-        out.println("    M=D"); //setting SP to the return address
-        out.println("    @SP");
-        out.println("    M=M+1"); //incrementing SP
-
-  
-        // M[SP++] = LCL
-        out.println("    @LCL");
-        out.println("    D=M");
-        out.println("    @SP");
-        out.println("    A=M");
-        out.println("    M=D");
-        out.println("    @SP");
-        out.println("    M=M+1");
-
-        // M[SP++] = ARG
-        out.println("    @ARG");
-        out.println("    D=M");
-        out.println("    @SP");
-        out.println("    A=M");
-        out.println("    M=D");
-        out.println("    @SP");
-        out.println("    M=M+1");
-
-        // M[SP++] = THIS
-        out.println("    @THIS");
-        out.println("    D=M");
-        out.println("    @SP");
-        out.println("    A=M");
-        out.println("    M=D");
-        out.println("    @SP");
-        out.println("    M=M+1");
-
-        // M[SP++] = THAT
-        out.println("    @THAT");
-        out.println("    D=M");
-        out.println("    @SP");
-        out.println("    A=M");
-        out.println("    M=D");
-        out.println("    @SP");
-        out.println("    M=M+1");
+        out.address(labelPrefix, "RETURN_", labelCount);
+        out.instruction(D_A); //Save return address to the stack
+        out.address("SP");
+        out.instruction(A_M);
+        out.instruction(M_D); //setting SP to the return address
+        out.address("SP");
+        out.instruction(M_M_PLUS_1); //incrementing SP
+
+        // M[SP++] = LCL, ARG, THIS, THAT
+        pushPointer("LCL");
+        pushPointer("ARG");
+        pushPointer("THIS");
+        pushPointer("THAT");
 
         // ARG = SP - 6 (i.e.,  SP - 5 - numArgs)
-        out.println("    @SP");
-        out.println("    D=M");
-        out.println("    @" + (5+numArgs));
-        out.println("    A=D-A");
-        out.println("    @ARG");
-        out.println("    M=D");
+        out.address("SP");
+        out.instruction(D_M);
+        out.address(5 + numArgs);
+        out.instruction(D_D_MINUS_A);
+        out.address("ARG");
+        out.instruction(M_D);
 
         // LCL = SP
-        out.println("    @SP");
-        out.println("    D=M");
-        out.println("    @LCL");
-        out.println("    M=D");
+        out.address("SP");
+        out.instruction(D_M);
+        out.address("LCL");
+        out.instruction(M_D);
 
         // goto Main.fibonacci
         writeGoto(functionName);
 
-       // RETURN_n: 
-        writeLabel("RETURN_" + labelCount++);
-        
+        // RETURN_n:
+        out.label(labelPrefix, "RETURN_", labelCount++);
     }
 
-        public void writeInit() {
-            out.println("    @256"); //loading 256 into A Register
-            out.println("    D=A");
-            out.println("    @SP");
-            out.println("    M=D");
-            writeCall("Sys.init", 0);
+    // R13 = the function, R14 = numArgs, D = the return address, and
+    // $$CALL does the rest.
+    private void writeCompactCall(String functionName, int numArgs) {
+        int start = out.instructionCount();
 
-        } 
+        out.address(functionName);
+        out.instruction(D_A);
+        out.address("R13");
+        out.instruction(M_D);
 
-    public void writeArithmetic(String command) {
-        out.println("\n    // " + command);
-
-        if (command.equals("add") || command.equals("sub") ||
-            command.equals("and") || command.equals("or")) {
-
-            out.println("    @SP");
-            out.println("    AM=M-1");
-            out.println("    D=M");
-            out.println("    A=A-1");
-
-            if (command.equals("add")) {
-                out.println("    M=M+D");
-            } else if (command.equals("sub")) {
-                out.println("    M=M-D");
-            } else if (command.equals("and")) {
-                out.println("    M=M&D");
-            } else if (command.equals("or")) {
-                out.println("    M=M|D");
+        if (numArgs <= 1) {
+            out.address("R14");
+            out.instruction(numArgs == 0 ? M_FALSE : M_ONE);
+        } else {
+            out.address(numArgs);
+            out.instruction(D_A);
+            out.address("R14");
+            out.instruction(M_D);
+        }
+
+        out.address(labelPrefix, "RETURN_", labelCount);
+        out.instruction(D_A);
+        out.address("$$CALL");
+        out.instruction(JMP);
+        out.label(labelPrefix, "RETURN_", labelCount++);
+
+        callCount++;
+        callSiteSize += out.instructionCount() - start;
+    }
+
+    // With --tail-calls, call followed by return: the callee reuses
+    // this function's frame instead of pushing one of its own, so it
+    // returns straight to this function's caller. Its arguments are
+    // copied down to ARG, and SP goes back to LCL, leaving the saved
+    // frame (LCL - 5 to LCL - 1) where the callee's return will look
+    // for it. LCL and ARG stay as they are.
+    //
+    // The arguments have to fit below the saved frame, i.e. there must
+    // be no more of them than this function was called with. A call
+    // to this function itself always fits; otherwise that's checked
+    // at run time (LCL - ARG - 5 is the number this function got), and
+    // when they don't fit it's an ordinary call and return.
+    public void writeTailCall(String functionName, int numArgs) {
+        out.comment("tail call ", functionName);
+        spillTos();
+
+        int fallback = labelCount++;
+        boolean check = numArgs > 0 && !functionName.equals(function);
+
+        if (check) {
+            out.address("ARG");
+            out.instruction(D_M);
+            out.address("LCL");
+            out.instruction(D_M_MINUS_D);
+            out.address(5 + numArgs);
+            out.instruction(D_D_MINUS_A);
+            out.address(labelPrefix, "TAIL_", fallback);
+            out.instruction(JLT);
+        }
+
+        // ARG[i] = M[SP - numArgs + i], going up, so no argument is
+        // written over before it's copied.
+        for (int i = 0; i < numArgs; i++) {
+            if (i > MAX_INDEX_STEPS) {
+                out.address(i);
+                out.instruction(D_A);
+                out.address("ARG");
+                out.instruction(D_D_PLUS_M);
+                out.address("R13");
+                out.instruction(M_D);
             }
-        
-        } else if (command.equals("eq") || command.equals("lt") ||
-            command.equals("gt")) {
-            
-            out.println("    @SP");
-            out.println("    AM=M-1");
-            out.println("    D=M");
-            out.println("    A=A-1");
-            out.println("    D=M-D");
-            out.println("    M=-1");
-            out.println("    @END_" + labelCount);
-            
-            if (command.equals("eq")) {
-                out.println("    D;JEQ");
-            } else if (command.equals("lt")) {
-                out.println("    D;JLT");
-            } else if (command.equals("gt")) {
-                out.println("    D;JGT");
+
+            if (numArgs - i == 1) {
+                out.address("SP");
+                out.instruction(A_M_MINUS_1);
+            } else {
+                out.address(numArgs - i);
+                out.instruction(D_A);
+                out.address("SP");
+                out.instruction(A_M_MINUS_D);
             }
+            out.instruction(D_M);
 
-            out.println("    @SP");
-            out.println("    A=M-1");
-            out.println("    M=0");
-            out.println("(END_" + labelCount++ + ")");
-        
-        } else if (command.equals("neg") || command.equals("not")) {
+            if (i > MAX_INDEX_STEPS) {
+                out.address("R13");
+                out.instruction(A_M);
+            } else {
+                pointAt(Segment.ARGUMENT, i);
+            }
+            out.instruction(M_D);
+        }
+
+        // SP = LCL
+        out.address("LCL");
+        out.instruction(D_M);
+        out.address("SP");
+        out.instruction(M_D);
+
+        writeGoto(functionName);
+
+        if (check) {
+            out.label(labelPrefix, "TAIL_", fallback);
+            writeCall(functionName, numArgs);
+            writeReturn();
+        }
+    }
+
+    private static boolean isPowerOf2(int n) {
+        return n > 0 && (n & n - 1) == 0;
+    }
+
+    // With --intrinsics, the number of commands from code[i] written
+    // as an intrinsic, or 0:
+    //   call Memory.peek 1, call Memory.poke 2, call Math.multiply 2
+    //   push constant c, call Math.multiply 2 (c 0 or a power of 2)
+    //   push constant c, push x, call Math.multiply 2 (the same)
+    //   push constant c, call Math.divide 2 (c a power of 2)
+    private static int intrinsicLength(VmCode code, int i, int end) {
+        for (int length = 1; length <= 3 && i + length <= end; length++) {
+            int call = i + length - 1;
+
+            if (code.opcode(call) != Opcode.CALL) continue;
+
+            String name = code.symbol(call);
+            Integer numArgs = INTRINSICS.get(name);
+            if (numArgs == null || numArgs != code.arg(call)) return 0;
+
+            boolean isMultiply = name.equals("Math.multiply");
+            boolean isDivide = name.equals("Math.divide");
+
+            if (length == 1) return isDivide ? 0 : 1;
+
+            if (!isMultiply && !isDivide ||
+                code.opcode(i) != Opcode.PUSH ||
+                code.segment(i) != Segment.CONSTANT) {
+                return 0;
+            }
+
+            int c = code.arg(i);
+
+            if (length == 2) {
+                return isPowerOf2(c) || isMultiply && c == 0 ? 2 : 0;
+            }
+
+            return isMultiply && (isPowerOf2(c) || c == 0) &&
+                code.opcode(i + 1) == Opcode.PUSH ? 3 : 0;
+        }
+
+        return 0;
+    }
+
+    // Writes the length commands from code[i] that intrinsicLength
+    // found.
+    private void writeIntrinsic(VmCode code, int i, int length) {
+        String name = code.symbol(i + length - 1);
+        out.comment("intrinsic ", name);
+        spillTos();
 
-            out.println("    @SP");
-            out.println("    A=M-1");
+        switch (name) {
+            case "Memory.peek":
+                // M[SP - 1] = M[M[SP - 1]]
+                out.address("SP");
+                out.instruction(A_M_MINUS_1);
+                out.instruction(A_M);
+                out.instruction(D_M);
+                out.address("SP");
+                out.instruction(A_M_MINUS_1);
+                out.instruction(M_D);
+                break;
 
-            if (command.equals("neg")) {
-                out.println("    M=-M");
-            } else if (command.equals("not")) {
-                out.println("    M=!M");
+            case "Memory.poke":
+                // M[M[SP - 2]] = M[SP - 1], leaving 0 (the void return
+                // value) in its place.
+                out.address("SP");
+                out.instruction(AM_M_MINUS_1);
+                out.instruction(D_M);
+                out.instruction(A_A_MINUS_1);
+                out.instruction(A_M);
+                out.instruction(M_D);
+                out.address("SP");
+                out.instruction(A_M_MINUS_1);
+                out.instruction(M_FALSE);
+                break;
+
+            case "Math.multiply":
+                if (length == 1) {
+                    callRoutine("$$MULTIPLY");
+                    multiplyUsed = true;
+                    break;
+                }
+
+                if (length == 3) {
+                    writePushPop(C_PUSH, code.segment(i + 1),
+                        code.arg(i + 1));
+                    spillTos();
+                }
+
+                writeMultiplyByPowerOf2(code.arg(i));
+                break;
+
+            default:  // Math.divide
+                if (code.arg(i) == 1) break;
+
+                out.address(code.arg(i));
+                out.instruction(D_A);
+                out.address("R13");
+                out.instruction(M_D);
+                callRoutine("$$DIVIDE_POW2");
+                dividePow2Used = true;
+        }
+    }
+
+    // M[SP - 1] *= c, where c is 0 or a power of 2, by doubling.
+    private void writeMultiplyByPowerOf2(int c) {
+        if (c == 1) return;
+
+        out.address("SP");
+        out.instruction(A_M_MINUS_1);
+
+        if (c == 0) {
+            out.instruction(M_FALSE);
+            return;
+        }
+
+        for (int n = c; n > 1; n /= 2) {
+            out.instruction(D_M);
+            out.instruction(M_M_PLUS_D);
+        }
+    }
+
+    // Goes to routine with the return address in D.
+    private void callRoutine(String routine) {
+        out.address(labelPrefix, "RETURN_", labelCount);
+        out.instruction(D_A);
+        out.address(routine);
+        out.instruction(JMP);
+        out.label(labelPrefix, "RETURN_", labelCount++);
+    }
+
+    // Leaves the routine for the address in R15.
+    private void returnFromRoutine() {
+        out.address("R15");
+        out.instruction(A_M);
+        out.instruction(JMP);
+    }
+
+    // Shift and add: for each bit of y (at SP - 1), from the bottom,
+    // adds x (at SP - 2, doubled each time) to the product when the
+    // bit is set, stopping when no bits are left. The product takes
+    // the place of x and y, like a call's return value.
+    private void writeMultiplyRoutine() {
+        out.comment("shared multiply: x * y, D = return address");
+        out.label("$$MULTIPLY");
+        out.address("R15");
+        out.instruction(M_D);
+        out.address("R14");  // Product.
+        out.instruction(M_FALSE);
+        out.address("R13");  // Bit of y.
+        out.instruction(M_ONE);
+
+        out.label("$$MULTIPLY_LOOP");
+        writeBitTests("$$MULTIPLY", A_M_MINUS_1);
+        out.address("SP");
+        out.instruction(A_M_MINUS_1);
+        out.instruction(A_A_MINUS_1);
+        out.instruction(D_M);
+        out.address("R14");
+        out.instruction(M_M_PLUS_D);
+        out.label("$$MULTIPLY_SKIP");
+        out.address("SP");
+        out.instruction(A_M_MINUS_1);
+        out.instruction(A_A_MINUS_1);
+        out.instruction(D_M);
+        out.instruction(M_M_PLUS_D);
+        writeNextBit("$$MULTIPLY");
+
+        out.label("$$MULTIPLY_END");
+        out.address("R14");
+        out.instruction(D_M);
+        out.address("SP");
+        out.instruction(AM_M_MINUS_1);
+        out.instruction(A_A_MINUS_1);
+        out.instruction(M_D);
+        returnFromRoutine();
+    }
+
+    // x / R13 (a power of 2) rounded toward zero, like Math.divide:
+    // |x| goes in M[SP], and a bit of the quotient in M[SP + 1] (both
+    // free, being above the stack). For each bit of |x| from R13 up,
+    // adds the quotient bit when the bit is set.
+    private void writeDividePow2Routine() {
+        out.comment("shared divide: x / R13, D = return address");
+        out.label("$$DIVIDE_POW2");
+        out.address("R15");
+        out.instruction(M_D);
+        out.address("R14");  // Quotient.
+        out.instruction(M_FALSE);
+        out.address("SP");
+        out.instruction(A_M_PLUS_1);
+        out.instruction(M_ONE);
+        out.address("SP");
+        out.instruction(A_M_MINUS_1);
+        out.instruction(D_M);
+        out.address("$$DIVIDE_POW2_ABS");
+        out.instruction(JGE);
+        out.instruction(D_NEG_D);
+        out.label("$$DIVIDE_POW2_ABS");
+        out.address("SP");
+        out.instruction(A_M);
+        out.instruction(M_D);
+
+        out.label("$$DIVIDE_POW2_LOOP");
+        writeBitTests("$$DIVIDE_POW2", A_M);
+        out.address("SP");
+        out.instruction(A_M_PLUS_1);
+        out.instruction(D_M);
+        out.address("R14");
+        out.instruction(M_M_PLUS_D);
+        out.label("$$DIVIDE_POW2_SKIP");
+        out.address("SP");
+        out.instruction(A_M_PLUS_1);
+        out.instruction(D_M);
+        out.instruction(M_M_PLUS_D);
+        writeNextBit("$$DIVIDE_POW2");
+
+        out.label("$$DIVIDE_POW2_END");
+        out.address("SP");
+        out.instruction(A_M_MINUS_1);
+        out.instruction(D_M);
+        out.address("$$DIVIDE_POW2_POSITIVE");
+        out.instruction(JGE);
+        out.address("R14");
+        out.instruction(M_NEG_M);
+        out.label("$$DIVIDE_POW2_POSITIVE");
+        out.address("R14");
+        out.instruction(D_M);
+        out.address("SP");
+        out.instruction(A_M_MINUS_1);
+        out.instruction(M_D);
+        returnFromRoutine();
+    }
+
+    // Tests bit R13 of the value that @SP then pointTo reaches: goes
+    // to routine_END if neither it nor any bit above it is set (-R13
+    // has them all), or to routine_SKIP if it isn't set.
+    private void writeBitTests(String routine, byte[] pointTo) {
+        out.address("R13");
+        out.instruction(D_M);
+        out.instruction(D_NEG_D);
+        out.address("SP");
+        out.instruction(pointTo);
+        out.instruction(D_D_AND_M);
+        out.address(routine + "_END");
+        out.instruction(JEQ);
+        out.address("R13");
+        out.instruction(D_M);
+        out.address("SP");
+        out.instruction(pointTo);
+        out.instruction(D_D_AND_M);
+        out.address(routine + "_SKIP");
+        out.instruction(JEQ);
+    }
+
+    // R13 += R13, and round the loop again. R13 becomes 0 after the
+    // top bit, which ends it.
+    private void writeNextBit(String routine) {
+        out.address("R13");
+        out.instruction(D_M);
+        out.instruction(M_M_PLUS_D);
+        out.address(routine + "_LOOP");
+        out.instruction(JMP);
+    }
+
+    // M[SP++] = D
+    private void pushD() {
+        out.address("SP");
+        out.instruction(AM_M_PLUS_1);
+        out.instruction(A_A_MINUS_1);
+        out.instruction(M_D);
+    }
+
+    private void writeCallRoutine() {
+        out.comment("shared call: R13 = function, R14 = numArgs, " +
+            "D = return address");
+        out.label("$$CALL");
+        pushD();
+
+        for (String pointer : new String[] {"LCL", "ARG", "THIS", "THAT"}) {
+            out.address(pointer);
+            out.instruction(D_M);
+            pushD();
+        }
+
+        // ARG = SP - 5 - R14
+        out.address("R14");
+        out.instruction(D_M);
+        out.address(5);
+        out.instruction(D_D_PLUS_A);
+        out.address("SP");
+        out.instruction(D_M_MINUS_D);
+        out.address("ARG");
+        out.instruction(M_D);
+
+        // LCL = SP
+        out.address("SP");
+        out.instruction(D_M);
+        out.address("LCL");
+        out.instruction(M_D);
+
+        // goto R13
+        out.address("R13");
+        out.instruction(A_M);
+        out.instruction(JMP);
+    }
+
+    private void writeReturnRoutine() {
+        out.comment("shared return");
+        out.label("$$RETURN");
+        writeReturnBody();
+    }
+
+    // Instructions written by code, on a scratch writer.
+    private static int sizeOf(TranslatorOptions options,
+        Consumer<CodeWriter> code) {
+        AsmWriter scratch = new AsmWriter();
+        code.accept(new CodeWriter(scratch, "", options));
+        return scratch.instructionCount();
+    }
+
+    // What compact calls saved in ROM and cost in cycles. Both forms
+    // are straight-line code, so cycles are instruction counts.
+    public String callReport() {
+        TranslatorOptions inline = new TranslatorOptions();
+        int inlineCall = sizeOf(inline, w -> w.writeCall("f", 2));
+        int inlineReturn = sizeOf(inline, CodeWriter::writeReturn);
+        int callRoutine = sizeOf(inline, CodeWriter::writeCallRoutine);
+        int returnRoutine = sizeOf(inline, CodeWriter::writeReturnRoutine);
+        int returnSite = 2;
+
+        int inlineSize = callCount * inlineCall + returnCount * inlineReturn;
+        int compactSize = callSiteSize + returnCount * returnSite +
+            callRoutine + returnRoutine;
+        double averageSite = callCount == 0 ? 0 :
+            (double) callSiteSize / callCount;
+
+        return String.format(
+            "Compact calls: %d call sites, %d returns%n" +
+            "  ROM: %d instructions inline, %d compact, %d saved%n" +
+            "  Cycles: %+.1f per call, %+d per return%n",
+            callCount, returnCount, inlineSize, compactSize,
+            inlineSize - compactSize,
+            averageSite + callRoutine - inlineCall,
+            returnSite + returnRoutine - inlineReturn);
+    }
+
+    public String peepholeReport() {
+        return out instanceof PeepholeWriter peephole ?
+            peephole.report() : "";
+    }
+
+    public void writeInit() {
+        function = "(bootstrap)";
+        mark(SourceMap.NO_FILE, 0, function);
+        profiled("bootstrap", () -> {
+            out.address(256); //loading 256 into A Register
+            out.instruction(D_A);
+            out.address("SP");
+            out.instruction(M_D);
+            writeCall("Sys.init", 0);
+        });
+    }
+
+    public void writeArithmetic(String command) {
+        writeArithmetic(Opcode.arithmetic(command));
+    }
+
+    public void writeArithmetic(Opcode command) {
+        out.comment(command.toString());
+
+        if (tosInD) {
+            writeCachedArithmetic(command);
+            return;
+        }
+
+        switch (command) {
+            case ADD:
+            case SUB:
+            case AND:
+            case OR:
+                out.address("SP");
+                out.instruction(AM_M_MINUS_1);
+                out.instruction(D_M);
+                out.instruction(A_A_MINUS_1);
+
+                if (command == Opcode.ADD) {
+                    out.instruction(M_M_PLUS_D);
+                } else if (command == Opcode.SUB) {
+                    out.instruction(M_M_MINUS_D);
+                } else if (command == Opcode.AND) {
+                    out.instruction(M_M_AND_D);
+                } else {
+                    out.instruction(M_M_OR_D);
+                }
+                break;
+
+            case EQ:
+            case LT:
+            case GT:
+                out.address("SP");
+                out.instruction(AM_M_MINUS_1);
+                out.instruction(D_M);
+                out.instruction(A_A_MINUS_1);
+                out.instruction(D_M_MINUS_D);
+                out.instruction(M_TRUE);
+                out.address(labelPrefix, "END_", labelCount);
+
+                if (command == Opcode.EQ) {
+                    out.instruction(JEQ);
+                } else if (command == Opcode.LT) {
+                    out.instruction(JLT);
+                } else {
+                    out.instruction(JGT);
+                }
+
+                out.address("SP");
+                out.instruction(A_M_MINUS_1);
+                out.instruction(M_FALSE);
+                out.label(labelPrefix, "END_", labelCount++);
+                break;
+
+            case NEG:
+            case NOT:
+                out.address("SP");
+                out.instruction(A_M_MINUS_1);
+                out.instruction(command == Opcode.NEG ? M_NEG_M : M_NOT_M);
+                break;
+
+            default:
+                throw new IllegalArgumentException(
+                    "Not an arithmetic command: " + command);
+        }
+    }
+
+    // The same, with y (the top of the stack) in D; the result stays in
+    // D.
+    private void writeCachedArithmetic(Opcode command) {
+        switch (command) {
+            case ADD:
+            case SUB:
+            case AND:
+            case OR:
+                out.address("SP");
+                out.instruction(AM_M_MINUS_1);
+
+                if (command == Opcode.ADD) {
+                    out.instruction(D_D_PLUS_M);
+                } else if (command == Opcode.SUB) {
+                    out.instruction(D_M_MINUS_D);
+                } else if (command == Opcode.AND) {
+                    out.instruction(D_D_AND_M);
+                } else {
+                    out.instruction(D_D_OR_M);
+                }
+                break;
+
+            case EQ:
+            case LT:
+            case GT:
+                out.address("SP");
+                out.instruction(AM_M_MINUS_1);
+                out.instruction(D_M_MINUS_D);
+                out.address(labelPrefix, "TRUE_", labelCount);
+
+                if (command == Opcode.EQ) {
+                    out.instruction(JEQ);
+                } else if (command == Opcode.LT) {
+                    out.instruction(JLT);
+                } else {
+                    out.instruction(JGT);
+                }
+
+                out.instruction(D_FALSE);
+                out.address(labelPrefix, "END_", labelCount);
+                out.instruction(JMP);
+                out.label(labelPrefix, "TRUE_", labelCount);
+                out.instruction(D_TRUE);
+                out.label(labelPrefix, "END_", labelCount++);
+                break;
+
+            case NEG:
+                out.instruction(D_NEG_D);
+                break;
+
+            case NOT:
+                out.instruction(D_NOT_D);
+                break;
+
+            default:
+                throw new IllegalArgumentException(
+                    "Not an arithmetic command: " + command);
+        }
+    }
+
+    // eq, lt or gt, then if-goto label, possibly with a not in
+    // between. The comparison goes straight into the jump instead of
+    // putting true or false on the stack.
+    public void writeCompareBranch(Opcode comparison, boolean negated,
+        String label) {
+        out.comment(negated ? comparison + " not if-goto " :
+            comparison + " if-goto ", label);
+
+        if (tosInD) {
+            tosInD = false;
+        } else {
+            out.address("SP");
+            out.instruction(AM_M_MINUS_1);
+            out.instruction(D_M);
+        }
+
+        out.address("SP");
+        out.instruction(AM_M_MINUS_1);
+        out.instruction(D_M_MINUS_D);
+        out.address(label);
+
+        switch (comparison) {
+            case EQ:
+                out.instruction(negated ? JNE : JEQ);
+                break;
+            case LT:
+                out.instruction(negated ? JGE : JLT);
+                break;
+            case GT:
+                out.instruction(negated ? JLE : JGT);
+                break;
+            default:
+                throw new IllegalArgumentException(
+                    "Not a comparison: " + comparison);
+        }
+    }
+
+    // Number of commands starting at i that writeCompareBranch can
+    // write as one, or 0.
+    private static int compareBranchLength(VmCode code, int i, int end) {
+        Opcode opcode = code.opcode(i);
+
+        if (opcode != Opcode.EQ && opcode != Opcode.LT &&
+            opcode != Opcode.GT) {
+            return 0;
+        }
+
+        int next = i + 1;
+        if (next < end && code.opcode(next) == Opcode.NOT) next++;
+
+        return next < end && code.opcode(next) == Opcode.IF_GOTO ?
+            next - i + 1 : 0;
+    }
+
+    // Writes a whole decoded file, dispatching on each opcode.
+    public void writeCode(VmCode code) {
+        writeCode(code, 0, code.size());
+    }
+
+    // Writes code[start] to code[end - 1].
+    public void writeCode(VmCode code, int start, int end) {
+        setFilename(code.name());
+
+        for (int i = start; i < end; i++) {
+            Opcode opcode = code.opcode(i);
+            int before = out.instructionCount();
+            int removedBefore = removed();
+            int length = options.fuseBranches ?
+                compareBranchLength(code, i, end) : 0;
+
+            mark(code.name() + ".vm", code.line(i),
+                opcode == Opcode.FUNCTION ? code.symbol(i) : function);
+
+            if (length > 0) {
+                writeCompareBranch(opcode, length == 3,
+                    code.symbol(i + length - 1));
+            } else if (options.intrinsics &&
+                (length = intrinsicLength(code, i, end)) > 0) {
+                writeIntrinsic(code, i, length);
+            } else if (options.tailCalls && isTailCall(code, i, end)) {
+                length = 2;
+                writeTailCall(code.symbol(i), code.arg(i));
+            } else if (isMinusOne(code, i, end)) {
+                length = 2;
+                writePushPop(C_PUSH, Segment.CONSTANT, -1);
+            } else {
+                length = 1;
+                writeCommand(code, i);
             }
+
+            if (profile != null) {
+                count(kindOf(code, i, length), before, removedBefore);
+            }
+
+            i += length - 1;
         }
+
+        profiled("(spill)", this::spillTos);
+    }
+
+    private static boolean isTailCall(VmCode code, int i, int end) {
+        return code.opcode(i) == Opcode.CALL && i + 1 < end &&
+            code.opcode(i + 1) == Opcode.RETURN;
+    }
+
+    // push constant 1, neg or push constant 0, not: -1, which
+    // ConstantFolder and the Jack compiler write for true. Like the
+    // other constants the ALU can make, this is always on: the stack
+    // ends up the same either way, so it doesn't get an option.
+    private static boolean isMinusOne(VmCode code, int i, int end) {
+        if (code.opcode(i) != Opcode.PUSH ||
+            code.segment(i) != Segment.CONSTANT || i + 1 >= end) {
+            return false;
+        }
+
+        Opcode next = code.opcode(i + 1);
+        return code.arg(i) == 1 && next == Opcode.NEG ||
+            code.arg(i) == 0 && next == Opcode.NOT;
+    }
+
+    private void writeCommand(VmCode code, int i) {
+        Opcode opcode = code.opcode(i);
+
+        switch (opcode) {
+            case PUSH:
+            case POP:
+                writePushPop(opcode.commandType(), code.segment(i),
+                    code.arg(i));
+                break;
+            case LABEL:
+                writeLabel(code.symbol(i));
+                break;
+            case GOTO:
+                writeGoto(code.symbol(i));
+                break;
+            case IF_GOTO:
+                writeIf(code.symbol(i));
+                break;
+            case FUNCTION:
+                writeFunction(code.symbol(i), code.arg(i));
+                break;
+            case CALL:
+                writeCall(code.symbol(i), code.arg(i));
+                break;
+            case RETURN:
+                writeReturn();
+                break;
+            default:
+                writeArithmetic(opcode);
+        }
+    }
+
+    // "push local", "call", "lt not if-goto" (fused), "intrinsic
+    // Math.multiply" etc. for the length commands starting at code[i].
+    private String kindOf(VmCode code, int i, int length) {
+        Opcode opcode = code.opcode(i);
+        Opcode last = code.opcode(i + length - 1);
+
+        if (options.intrinsics && last == Opcode.CALL &&
+            intrinsicLength(code, i, i + length) == length) {
+            return "intrinsic " + code.symbol(i + length - 1);
+        }
+
+        if (opcode == Opcode.PUSH || opcode == Opcode.POP) {
+            return opcode + " " + code.segment(i);
+        }
+
+        StringBuilder kind = new StringBuilder(opcode.toString());
+
+        for (int j = i + 1; j < i + length; j++) {
+            kind.append(' ').append(code.opcode(j));
+        }
+
+        return kind.toString();
+    }
+
+    // With --profile, counts what write adds to ROM under kind.
+    private void profiled(String kind, Runnable write) {
+        int before = out.instructionCount();
+        int removedBefore = removed();
+        write.run();
+        if (profile != null) count(kind, before, removedBefore);
+    }
+
+    // Peephole rules often rewrite one command's code when the next
+    // one comes along, so kinds are charged for the instructions
+    // written before rewriting, and what the rules took out goes
+    // under "(peephole)".
+    private void count(String kind, int before, int removedBefore) {
+        int removed = removed() - removedBefore;
+        profile.add(kind, function,
+            out.instructionCount() - before + removed);
+        profile.add("(peephole)", function, -removed);
+    }
+
+    // With --source-map, starts an entry for the code written next.
+    private void mark(String file, int line, String function) {
+        if (sourceMap != null) {
+            sourceMap.add(out.instructionCount(), file, line, function);
+        }
+    }
+
+    private int removed() {
+        return out instanceof PeepholeWriter peephole ?
+            peephole.removed() : 0;
+    }
+
+    // With --profile, where this writer's instructions went.
+    public RomProfile profile() {
+        return profile;
+    }
+
+    // With --source-map, where each ROM address came from.
+    public SourceMap sourceMap() {
+        return sourceMap;
+    }
+
+    // Instructions written so far.
+    public int instructionCount() {
+        return out.instructionCount();
     }
-}                                                                        
+}
@@ -0,0 +1,176 @@
+//Written by David Owen and Noah Barrall
+
+package vmtranslator;
+
+// Simplifies VM code before it's translated: arithmetic and
+// comparisons on constants are done here instead of at run time,
+// identities like push constant 0, add are dropped, and neg, neg and
+// not, not cancel out. All values are 16-bit two's complement, and lt
+// and gt give what the generated code would, which compares by the
+// sign of the 16-bit difference.
+//
+// Commands are copied one at a time and each is checked against the
+// end of the copy, so a folded constant can be folded again by the
+// commands after it. A pattern can't span a label, since the label is
+// a command of its own.
+public class ConstantFolder {
+
+    // A constant is pushed by push constant k, or for negative values
+    // by push constant k, neg (or not for -32768). length is how many
+    // commands that took.
+    private record Constant(int value, int length) {}
+
+    private final VmCode code;
+
+    private ConstantFolder(String name) {
+        code = new VmCode(name);
+    }
+
+    public static VmCode fold(VmCode code) {
+        ConstantFolder folder = new ConstantFolder(code.name());
+
+        for (int i = 0; i < code.size(); i++) {
+            folder.add(code, i);
+        }
+
+        return folder.code;
+    }
+
+    private void add(VmCode source, int i) {
+        Opcode opcode = source.opcode(i);
+
+        switch (opcode) {
+            case NEG:
+            case NOT:
+                if (foldUnary(opcode)) return;
+                break;
+            case ADD:
+            case SUB:
+            case AND:
+            case OR:
+            case EQ:
+            case LT:
+            case GT:
+                if (foldBinary(opcode)) return;
+                break;
+            case IF_GOTO:
+                if (foldIf(source.symbol(i))) return;
+                break;
+            default:
+        }
+
+        code.copy(source, i, i + 1);
+    }
+
+    private boolean foldUnary(Opcode opcode) {
+        Constant x = constantAt(code.size());
+
+        if (x != null) {
+            replace(x.length(), opcode == Opcode.NEG ? -x.value() :
+                ~x.value());
+            return true;
+        }
+
+        int last = code.size() - 1;
+
+        if (last >= 0 && code.opcode(last) == opcode) {
+            code.truncate(last);
+            return true;
+        }
+
+        return false;
+    }
+
+    private boolean foldBinary(Opcode opcode) {
+        Constant y = constantAt(code.size());
+        if (y == null) return false;
+
+        Constant x = constantAt(code.size() - y.length());
+
+        if (x != null) {
+            replace(x.length() + y.length(),
+                apply(opcode, x.value(), y.value()));
+            return true;
+        }
+
+        // x + 0, x - 0, x | 0 and x & -1 are x.
+        boolean identity = y.value() == 0 ?
+            opcode == Opcode.ADD || opcode == Opcode.SUB ||
+            opcode == Opcode.OR :
+            y.value() == -1 && opcode == Opcode.AND;
+
+        if (identity) {
+            code.truncate(code.size() - y.length());
+        }
+
+        return identity;
+    }
+
+    // A constant condition either always jumps or never does.
+    private boolean foldIf(String label) {
+        Constant condition = constantAt(code.size());
+        if (condition == null) return false;
+
+        code.truncate(code.size() - condition.length());
+        if (condition.value() != 0) code.add(Opcode.GOTO, null, 0, label);
+        return true;
+    }
+
+    private static int apply(Opcode opcode, int x, int y) {
+        switch (opcode) {
+            case ADD: return x + y;
+            case SUB: return x - y;
+            case AND: return x & y;
+            case OR: return x | y;
+            case EQ: return x == y ? -1 : 0;
+            case LT: return (short) (x - y) < 0 ? -1 : 0;
+            case GT: return (short) (x - y) > 0 ? -1 : 0;
+            default:
+                throw new IllegalArgumentException(
+                    "Not a binary command: " + opcode);
+        }
+    }
+
+    // The constant pushed by the commands just before code[end], or
+    // null.
+    private Constant constantAt(int end) {
+        int last = end - 1;
+        if (last < 0) return null;
+
+        if (isConstant(last)) return new Constant(code.arg(last), 1);
+
+        if (last >= 1 && isConstant(last - 1)) {
+            int k = code.arg(last - 1);
+            if (code.opcode(last) == Opcode.NEG) {
+                return new Constant((short) -k, 2);
+            }
+            if (code.opcode(last) == Opcode.NOT) {
+                return new Constant((short) ~k, 2);
+            }
+        }
+
+        return null;
+    }
+
+    private boolean isConstant(int i) {
+        return code.opcode(i) == Opcode.PUSH &&
+            code.segment(i) == Segment.CONSTANT &&
+            code.arg(i) >= 0 && code.arg(i) <= Short.MAX_VALUE;
+    }
+
+    // Replaces the last length commands with ones pushing value.
+    private void replace(int length, int value) {
+        code.truncate(code.size() - length);
+        value = (short) value;
+
+        if (value >= 0) {
+            code.add(Opcode.PUSH, Segment.CONSTANT, value, null);
+        } else if (value == Short.MIN_VALUE) {
+            code.add(Opcode.PUSH, Segment.CONSTANT, Short.MAX_VALUE, null);
+            code.add(Opcode.NOT, null, 0, null);
+        } else {
+            code.add(Opcode.PUSH, Segment.CONSTANT, -value, null);
+            code.add(Opcode.NEG, null, 0, null);
+        }
+    }
+}
@@ -0,0 +1,216 @@
+//Written by David Owen and Noah Barrall
+
+package vmtranslator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Replaces calls to small leaf functions with the functions' bodies,
+// across the whole program. A function can be inlined when it's
+// straight-line code (no labels, jumps or calls, so it can't recurse)
+// ending in its only return, with just the return value on its stack
+// there, and no more than budget commands long.
+//
+// The inlined body keeps its arguments and locals in static
+// variables of the calling file, numbered after the ones the file
+// already uses. The body makes no calls, so nothing else can use them
+// while it runs, and every inlined body in a file can share them. A
+// call saves and restores THIS and THAT, so if the body sets pointer
+// 0 or 1, the old value is kept in one too. The function's own static
+// variables belong to its file, so a function using them is only
+// inlined into that file.
+public class Inliner {
+
+    // Largest body (not counting function and return) inlined by
+    // default.
+    public static final int DEFAULT_BUDGET = 12;
+
+    // What's needed to inline one function.
+    private record Candidate(VmFunction function, int maxArgument,
+        boolean[] pointerSet, boolean usesStatic) {}
+
+    private final List<VmCode> program;
+    private final Map<String, Candidate> candidates = new HashMap<>();
+    private int sites;
+
+    public Inliner(List<VmCode> program, int budget) {
+        this.program = program;
+
+        for (VmFunction function : new CallGraph(program).functions()) {
+            Candidate candidate = candidate(function, budget);
+            if (candidate != null) {
+                candidates.put(function.name(), candidate);
+            }
+        }
+    }
+
+    // The program with calls to small leaf functions inlined. The
+    // functions themselves are kept, for calls that can't be inlined
+    // and for --whole-program to drop if none are left.
+    public List<VmCode> inline() {
+        List<VmCode> result = new ArrayList<>();
+
+        for (VmCode code : program) {
+            result.add(inline(code));
+        }
+
+        return result;
+    }
+
+    public String report() {
+        return String.format(
+            "Inlining: %d call sites, %d functions small enough%n",
+            sites, candidates.size());
+    }
+
+    private VmCode inline(VmCode code) {
+        VmCode result = new VmCode(code.name());
+        int firstSlot = 0;
+
+        for (int i = 0; i < code.size(); i++) {
+            if (code.segment(i) == Segment.STATIC) {
+                firstSlot = Math.max(firstSlot, code.arg(i) + 1);
+            }
+        }
+
+        for (int i = 0; i < code.size(); i++) {
+            Candidate candidate = code.opcode(i) == Opcode.CALL ?
+                candidates.get(code.symbol(i)) : null;
+
+            if (candidate == null ||
+                !writeBody(result, candidate, code.arg(i), firstSlot)) {
+                result.copy(code, i, i + 1);
+            }
+        }
+
+        return result;
+    }
+
+    private static Candidate candidate(VmFunction function, int budget) {
+        VmCode code = function.code();
+        int end = function.end() - 1;
+
+        if (end <= function.start() || code.opcode(end) != Opcode.RETURN ||
+            end - function.start() - 1 > budget) {
+            return null;
+        }
+
+        int maxArgument = -1;
+        boolean[] pointerSet = new boolean[2];
+        boolean usesStatic = false;
+        int depth = 0;
+
+        for (int i = function.start() + 1; i < end; i++) {
+            Opcode opcode = code.opcode(i);
+
+            switch (opcode) {
+                case PUSH:
+                case POP:
+                    Segment segment = code.segment(i);
+                    int index = code.arg(i);
+
+                    if (opcode == Opcode.POP && --depth < 0) return null;
+                    if (opcode == Opcode.PUSH) depth++;
+
+                    switch (segment) {
+                        case ARGUMENT:
+                            maxArgument = Math.max(maxArgument, index);
+                            break;
+                        case LOCAL:
+                            if (index >= function.numLocals()) return null;
+                            break;
+                        case POINTER:
+                            if (index > 1) return null;
+                            if (opcode == Opcode.POP) pointerSet[index] = true;
+                            break;
+                        case STATIC:
+                            usesStatic = true;
+                            break;
+                        default:
+                    }
+                    break;
+                case NEG:
+                case NOT:
+                    if (depth < 1) return null;
+                    break;
+                case ADD:
+                case SUB:
+                case AND:
+                case OR:
+                case EQ:
+                case LT:
+                case GT:
+                    if (--depth < 1) return null;
+                    break;
+                default:
+                    return null;  // Control flow or a call.
+            }
+        }
+
+        if (depth != 1) return null;
+
+        return new Candidate(function, maxArgument, pointerSet,
+            usesStatic);
+    }
+
+    // Writes candidate's body in place of call candidate numArgs, or
+    // returns false if this call can't take it. Static variables from
+    // firstSlot on are free.
+    private boolean writeBody(VmCode result, Candidate candidate,
+        int numArgs, int firstSlot) {
+        VmFunction function = candidate.function();
+        VmCode code = function.code();
+
+        if (candidate.maxArgument() >= numArgs) return false;
+        if (candidate.usesStatic() && !code.name().equals(result.name())) {
+            return false;
+        }
+
+        // Slots: arguments, then locals, then saved pointers.
+        int localSlot = firstSlot + numArgs;
+        int next = localSlot + function.numLocals();
+        int[] saved = new int[2];
+
+        for (int p = 0; p < 2; p++) {
+            if (!candidate.pointerSet()[p]) continue;
+            saved[p] = next++;
+            result.add(Opcode.PUSH, Segment.POINTER, p, null);
+            result.add(Opcode.POP, Segment.STATIC, saved[p], null);
+        }
+
+        for (int a = numArgs - 1; a >= 0; a--) {
+            result.add(Opcode.POP, Segment.STATIC, firstSlot + a, null);
+        }
+
+        for (int l = 0; l < function.numLocals(); l++) {
+            result.add(Opcode.PUSH, Segment.CONSTANT, 0, null);
+            result.add(Opcode.POP, Segment.STATIC, localSlot + l, null);
+        }
+
+        for (int i = function.start() + 1; i < function.end() - 1; i++) {
+            Segment segment = code.segment(i);
+            int index = code.arg(i);
+
+            if (segment == Segment.ARGUMENT) {
+                segment = Segment.STATIC;
+                index += firstSlot;
+            } else if (segment == Segment.LOCAL) {
+                segment = Segment.STATIC;
+                index += localSlot;
+            }
+
+            result.add(code.opcode(i), segment, index, null);
+        }
+
+        for (int p = 0; p < 2; p++) {
+            if (!candidate.pointerSet()[p]) continue;
+            result.add(Opcode.PUSH, Segment.STATIC, saved[p], null);
+            result.add(Opcode.POP, Segment.POINTER, p, null);
+        }
+
+        sites++;
+        return true;
+    }
+}
@@ -0,0 +1,251 @@
+//Written by David Owen and Noah Barrall
+
+package vmtranslator;
+
+import static vmtranslator.CommandType.*;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Same contract as Parser, but reads a memory-mapped .vm file byte by
+// byte instead of going through Scanner and String.split. Commands
+// and segments come back as constant Strings, indexes are parsed
+// straight from the bytes, and label and function names are looked up
+// in a small table so each distinct name is only made into a String
+// once.
+public class MappedParser implements VmParser {
+
+    private static final String[] ARITHMETIC = {
+        "add", "sub", "neg", "eq", "gt", "lt", "and", "or", "not"
+    };
+
+    private static final String[] SEGMENTS = {
+        "constant", "local", "argument", "this", "that",
+        "pointer", "temp", "static"
+    };
+
+    private MappedByteBuffer input;
+    private int length;
+    private int nextCommand;  // Start of the next command, or -1.
+    private int line = 1;  // Line skipToNext has reached.
+    private int lineNumber;  // The current command's.
+    private int nextLineNumber;
+
+    private CommandType commandType;
+    private String arg1;
+    private int arg2;
+
+    // Open-addressing table of the names seen so far.
+    private String[] names = new String[64];
+    private int[] hashes = new int[64];
+    private int nameCount;
+
+    public MappedParser(String filename) throws IOException {
+
+        try (FileChannel channel = FileChannel.open(Path.of(filename),
+                StandardOpenOption.READ)) {
+            input = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                channel.size());
+        }
+
+        length = input.limit();
+        skipToNext(0);
+    }
+
+    public void close() {
+        input = null;
+    }
+
+    public boolean hasMoreLines() {
+        return nextCommand != -1;
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r';
+    }
+
+    private boolean isCommentAt(int i) {
+        return input.get(i) == '/' && i + 1 < length &&
+            input.get(i + 1) == '/';
+    }
+
+    private int skipSpaces(int i) {
+        while (i < length && isSpace(input.get(i))) i++;
+        return i;
+    }
+
+    private int endOfToken(int i) {
+        while (i < length && !isSpace(input.get(i)) &&
+            input.get(i) != '\n' && !isCommentAt(i)) i++;
+        return i;
+    }
+
+    private int endOfLine(int i) {
+        while (i < length && input.get(i) != '\n') i++;
+        return i;
+    }
+
+    private void skipToNext(int i) {
+        nextCommand = -1;
+
+        while (i < length) {
+            i = skipSpaces(i);
+
+            if (i == length) {
+                break;
+            } else if (input.get(i) == '\n') {
+                i++;
+                line++;
+            } else if (isCommentAt(i)) {
+                i = endOfLine(i);
+            } else {
+                nextCommand = i;
+                nextLineNumber = line;
+                break;
+            }
+        }
+    }
+
+    public void advance() {
+        int start = nextCommand;
+        int end = endOfToken(start);
+        lineNumber = nextLineNumber;
+        commandType = commandType(start, end - start);
+
+        if (commandType == C_ARITHMETIC) {
+            arg1 = constant(ARITHMETIC, start, end);
+        } else if (commandType != C_RETURN) {
+            start = skipSpaces(end);
+            end = endOfToken(start);
+
+            if (commandType == C_PUSH || commandType == C_POP) {
+                arg1 = constant(SEGMENTS, start, end);
+            } else {
+                arg1 = name(start, end);
+            }
+
+            if (commandType == C_PUSH || commandType == C_POP ||
+                commandType == C_FUNCTION || commandType == C_CALL) {
+                start = skipSpaces(end);
+                end = endOfToken(start);
+                arg2 = number(start, end);
+            }
+        }
+
+        skipToNext(endOfLine(end));
+    }
+
+    private CommandType commandType(int start, int size) {
+        byte first = input.get(start);
+
+        if (first == 'p' && size == 4) {
+            return C_PUSH;
+        } else if (first == 'p' && size == 3) {
+            return C_POP;
+        } else if (first == 'l' && size == 5) {
+            return C_LABEL;
+        } else if (first == 'g' && size == 4) {
+            return C_GOTO;
+        } else if (first == 'i' && size == 7) {
+            return C_IF;
+        } else if (first == 'f' && size == 8) {
+            return C_FUNCTION;
+        } else if (first == 'r' && size == 6) {
+            return C_RETURN;
+        } else if (first == 'c' && size == 4) {
+            return C_CALL;
+        } else {
+            return C_ARITHMETIC;
+        }
+    }
+
+    private boolean matches(String s, int start, int end) {
+        if (s.length() != end - start) return false;
+
+        for (int i = start; i < end; i++) {
+            if (s.charAt(i - start) != input.get(i)) return false;
+        }
+
+        return true;
+    }
+
+    private String constant(String[] constants, int start, int end) {
+        for (String s : constants) {
+            if (matches(s, start, end)) return s;
+        }
+
+        return name(start, end);
+    }
+
+    private int number(int start, int end) {
+        int n = 0;
+
+        for (int i = start; i < end; i++) {
+            n = n * 10 + (input.get(i) - '0');
+        }
+
+        return n;
+    }
+
+    // Same hash as String.hashCode, since VM files are ASCII.
+    private String name(int start, int end) {
+        int hash = 0;
+
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + input.get(i);
+        }
+
+        int mask = names.length - 1;
+        int slot = hash & mask;
+
+        while (names[slot] != null) {
+            if (hashes[slot] == hash && matches(names[slot], start, end))
+                return names[slot];
+            slot = (slot + 1) & mask;
+        }
+
+        byte[] bytes = new byte[end - start];
+        input.get(start, bytes);
+        String name = new String(bytes, StandardCharsets.US_ASCII);
+
+        names[slot] = name;
+        hashes[slot] = hash;
+        if (++nameCount * 2 > names.length) growNames();
+        return name;
+    }
+
+    private void growNames() {
+        String[] oldNames = names;
+        names = new String[oldNames.length * 2];
+        hashes = new int[names.length];
+        int mask = names.length - 1;
+
+        for (String name : oldNames) {
+            if (name == null) continue;
+            int slot = name.hashCode() & mask;
+            while (names[slot] != null) slot = (slot + 1) & mask;
+            names[slot] = name;
+            hashes[slot] = name.hashCode();
+        }
+    }
+
+    public CommandType commandType() {
+        return commandType;
+    }
+
+    public String arg1() {
+        return arg1;
+    }
+
+    public int arg2() {
+        return arg2;
+    }
+
+    public int lineNumber() {
+        return lineNumber;
+    }
+}
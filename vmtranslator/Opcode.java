@@ -0,0 +1,90 @@
+//Written by David Owen and Noah Barrall
+
+package vmtranslator;
+
+import static vmtranslator.CommandType.*;
+
+// One value per VM command, so that the arithmetic commands can be
+// told apart without comparing strings.
+public enum Opcode {
+
+    ADD("add"),
+    SUB("sub"),
+    NEG("neg"),
+    EQ("eq"),
+    GT("gt"),
+    LT("lt"),
+    AND("and"),
+    OR("or"),
+    NOT("not"),
+    PUSH("push"),
+    POP("pop"),
+    LABEL("label"),
+    GOTO("goto"),
+    IF_GOTO("if-goto"),
+    FUNCTION("function"),
+    CALL("call"),
+    RETURN("return");
+
+    private static final Opcode[] VALUES = values();
+
+    private final String vmName;
+
+    private Opcode(String vmName) {
+        this.vmName = vmName;
+    }
+
+    public static Opcode arithmetic(String command) {
+        switch (command) {
+            case "add": return ADD;
+            case "sub": return SUB;
+            case "neg": return NEG;
+            case "eq": return EQ;
+            case "gt": return GT;
+            case "lt": return LT;
+            case "and": return AND;
+            case "or": return OR;
+            case "not": return NOT;
+            default: throw new IllegalArgumentException(
+                "Unknown command: " + command);
+        }
+    }
+
+    public static Opcode of(CommandType type, String arg1) {
+        switch (type) {
+            case C_PUSH: return PUSH;
+            case C_POP: return POP;
+            case C_LABEL: return LABEL;
+            case C_GOTO: return GOTO;
+            case C_IF: return IF_GOTO;
+            case C_FUNCTION: return FUNCTION;
+            case C_CALL: return CALL;
+            case C_RETURN: return RETURN;
+            default: return arithmetic(arg1);
+        }
+    }
+
+    public static Opcode of(int ordinal) {
+        return VALUES[ordinal];
+    }
+
+    public CommandType commandType() {
+        switch (this) {
+            case PUSH: return C_PUSH;
+            case POP: return C_POP;
+            case LABEL: return C_LABEL;
+            case GOTO: return C_GOTO;
+            case IF_GOTO: return C_IF;
+            case FUNCTION: return C_FUNCTION;
+            case CALL: return C_CALL;
+            case RETURN: return C_RETURN;
+            default: return C_ARITHMETIC;
+        }
+    }
+
+    // The command as written in .vm files, e.g. "if-goto".
+    @Override
+    public String toString() {
+        return vmName;
+    }
+}
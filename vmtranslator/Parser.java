@@ -6,14 +6,16 @@ import static vmtranslator.CommandType.*;
 
 import java.io.IOException;
 import java.io.FileInputStream;
+import java.io.InputStream;
 import java.util.Scanner;
 
-public class Parser {
+public class Parser implements VmParser {
 
     private Scanner input;
     private String currentCommand, nextCommand;
     private String arg1;
     private int arg2;
+    private int lineNumber, nextLineNumber, linesRead;
 
     public Parser(String fileNameOrInputString) {
         try {
@@ -26,6 +28,12 @@ public class Parser {
         skipToNext();
     }
 
+    // Reads commands from input as they're needed, e.g. from a pipe.
+    public Parser(InputStream input) {
+        this.input = new Scanner(input);
+        skipToNext();
+    }
+
     public void close() {
         input.close();
     }
@@ -39,12 +47,14 @@ public class Parser {
         
         while (input.hasNextLine()) {
             String line = input.nextLine();
+            linesRead++;
             int endIndex = line.indexOf("//");
             if (endIndex != -1) line = line.substring(0, line.indexOf("//"));
             line = line.strip().replaceAll("[ \t]+", " ");
 
             if (!line.equals("")) {
                 nextCommand = line;
+                nextLineNumber = linesRead;
                 break;
             }
         }
@@ -56,6 +66,7 @@ public class Parser {
 
         if (tokens.length >= 2) arg1 = tokens[1];
         if (tokens.length >= 3) arg2 = Integer.parseInt(tokens[2]);
+        lineNumber = nextLineNumber;
 
         skipToNext();
     }
@@ -96,6 +107,10 @@ public class Parser {
         return arg2;
     }
 
+    public int lineNumber() {
+        return lineNumber;
+    }
+
     // Not part of API, just for testing.
     public static void main(String[] args) {
 
@@ -0,0 +1,129 @@
+//Written by David Owen and Noah Barrall
+
+package vmtranslator;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// One rewrite for PeepholeWriter: a run of instructions and what to
+// replace it with. Pattern entries are instruction text ("M=D",
+// "@SP") with two kinds of variables:
+//
+//   @$a  matches any A-instruction and binds its operand to $a
+//   $i   matches any C-instruction that doesn't write A, and binds
+//        the whole instruction to $i
+//
+// A variable used twice must match the same text both times, and
+// variables in the replacement are filled in from the match.
+public class PeepholeRule {
+
+    private final String name;
+    private final String[] pattern;
+    private final String[] replacement;
+
+    // pattern and replacement with each variable numbered, and -1 for
+    // plain instructions.
+    private final int[] patternVariables;
+    private final int[] replacementVariables;
+    private final int variableCount;
+
+    public PeepholeRule(String name, String[] pattern,
+        String[] replacement) {
+        this.name = name;
+        this.pattern = pattern;
+        this.replacement = replacement;
+
+        List<String> variables = new ArrayList<>();
+        patternVariables = number(pattern, variables);
+        replacementVariables = number(replacement, variables);
+        variableCount = variables.size();
+    }
+
+    private static int[] number(String[] instructions,
+        List<String> variables) {
+        int[] numbers = new int[instructions.length];
+
+        for (int i = 0; i < instructions.length; i++) {
+            String variable = variable(instructions[i]);
+
+            if (variable == null) {
+                numbers[i] = -1;
+            } else {
+                if (!variables.contains(variable)) variables.add(variable);
+                numbers[i] = variables.indexOf(variable);
+            }
+        }
+
+        return numbers;
+    }
+
+    private static String variable(String instruction) {
+        if (instruction.startsWith("@$")) return instruction.substring(1);
+        if (instruction.startsWith("$")) return instruction;
+        return null;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public int length() {
+        return pattern.length;
+    }
+
+    // The replacement if the pattern matches window starting at start,
+    // otherwise null.
+    public List<String> apply(List<String> window, int start) {
+        if (start + pattern.length > window.size()) return null;
+
+        String[] values = null;
+
+        for (int i = 0; i < pattern.length; i++) {
+            String p = pattern[i];
+            String text = window.get(start + i);
+            String value;
+
+            if (patternVariables[i] == -1) {
+                if (p.equals(text)) continue;
+                return null;
+            } else if (p.startsWith("@")) {
+                if (!text.startsWith("@")) return null;
+                value = text.substring(1);
+            } else {
+                if (text.startsWith("@") || writesA(text)) return null;
+                value = text;
+            }
+
+            if (values == null) values = new String[variableCount];
+            String bound = values[patternVariables[i]];
+
+            if (bound == null) {
+                values[patternVariables[i]] = value;
+            } else if (!bound.equals(value)) {
+                return null;
+            }
+        }
+
+        List<String> result = new ArrayList<>(replacement.length);
+
+        for (int i = 0; i < replacement.length; i++) {
+            String r = replacement[i];
+            int variable = replacementVariables[i];
+
+            if (variable == -1) {
+                result.add(r);
+            } else if (r.startsWith("@")) {
+                result.add("@" + values[variable]);
+            } else {
+                result.add(values[variable]);
+            }
+        }
+
+        return result;
+    }
+
+    private static boolean writesA(String instruction) {
+        int equals = instruction.indexOf('=');
+        return equals != -1 && instruction.lastIndexOf('A', equals) != -1;
+    }
+}
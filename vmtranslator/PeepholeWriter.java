@@ -0,0 +1,341 @@
+//Written by David Owen and Noah Barrall
+
+package vmtranslator;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+// An AsmWriter that holds the last few instructions in a window and
+// rewrites them with a table of PeepholeRules before they reach the
+// output. Labels are jump targets, so the window is emptied before
+// each one and no rule ever matches across a label. Comments ride
+// along with the instruction that follows them.
+public class PeepholeWriter extends AsmWriter {
+
+    private static final String[] PUSH_D =
+        {"@SP", "M=M+1", "A=M-1", "M=D"};
+
+    // Every rule must make the code shorter, so rewriting always ends.
+    public static final List<PeepholeRule> DEFAULT_RULES = List.of(
+
+        // push x; add|sub|and|or|eq|gt|lt: the value to pop is still
+        // in D, so leave SP alone and point A at the other operand.
+        new PeepholeRule("push-binary",
+            concat(PUSH_D, "@SP", "AM=M-1", "D=M", "A=A-1"),
+            new String[] {"@SP", "A=M-1"}),
+
+        // push x; pop (pointer|temp|static) or if-goto: D already holds
+        // the popped value.
+        new PeepholeRule("push-pop",
+            concat(PUSH_D, "@SP", "AM=M-1", "D=M", "@$x"),
+            new String[] {"@$x"}),
+
+        // push x; neg|not: negate D on its way onto the stack.
+        new PeepholeRule("push-neg",
+            concat(PUSH_D, "@SP", "A=M-1", "M=-M"),
+            new String[] {"@SP", "M=M+1", "A=M-1", "M=-D"}),
+
+        new PeepholeRule("push-not",
+            concat(PUSH_D, "@SP", "A=M-1", "M=!M"),
+            new String[] {"@SP", "M=M+1", "A=M-1", "M=!D"}),
+
+        new PeepholeRule("decrement-load",
+            new String[] {"M=M-1", "A=M"},
+            new String[] {"AM=M-1"}),
+
+        new PeepholeRule("increment-load",
+            new String[] {"M=M+1", "A=M"},
+            new String[] {"AM=M+1"}),
+
+        // The first A-instruction is overwritten before it's used.
+        new PeepholeRule("dead-address",
+            new String[] {"@$a", "@$b"},
+            new String[] {"@$b"}),
+
+        // A still holds a.
+        new PeepholeRule("reload",
+            new String[] {"@$a", "$i", "@$a"},
+            new String[] {"@$a", "$i"}));
+
+    private static final int WINDOW_SIZE = 16;
+
+    private final List<PeepholeRule> rules;
+    private final int[] fired;
+    private final int longestRule;
+    private int removed;
+
+    // Instruction text ("@SP", "D=M"), and the comments that go in
+    // front of each instruction (null if none).
+    private final List<String> window = new ArrayList<>();
+    private final List<List<String>> notes = new ArrayList<>();
+    private List<String> pendingComments;
+
+    private final Map<byte[], String> decoded = new IdentityHashMap<>();
+    private final Map<String, byte[]> encoded = new HashMap<>();
+
+    public PeepholeWriter(String filename, List<PeepholeRule> rules)
+        throws IOException {
+        super(filename);
+        this.rules = rules;
+        fired = new int[rules.size()];
+        longestRule = longest(rules);
+    }
+
+    public PeepholeWriter(WritableByteChannel channel,
+        List<PeepholeRule> rules) {
+        super(channel);
+        this.rules = rules;
+        fired = new int[rules.size()];
+        longestRule = longest(rules);
+    }
+
+    // Keeps everything in memory.
+    public PeepholeWriter(List<PeepholeRule> rules) {
+        this.rules = rules;
+        fired = new int[rules.size()];
+        longestRule = longest(rules);
+    }
+
+    private static int longest(List<PeepholeRule> rules) {
+        int longest = 1;
+
+        for (PeepholeRule rule : rules) {
+            longest = Math.max(longest, rule.length());
+        }
+
+        return longest;
+    }
+
+    private static String[] concat(String[] first, String... rest) {
+        String[] result = new String[first.length + rest.length];
+        System.arraycopy(first, 0, result, 0, first.length);
+        System.arraycopy(rest, 0, result, first.length, rest.length);
+        return result;
+    }
+
+    // Instructions the rules have taken out so far.
+    public int removed() {
+        return removed;
+    }
+
+    @Override
+    public int instructionCount() {
+        return super.instructionCount() + window.size();
+    }
+
+    @Override
+    public void instruction(byte[] line) {
+        add(decoded.computeIfAbsent(line, l ->
+            new String(l, StandardCharsets.US_ASCII).strip()));
+    }
+
+    @Override
+    public void address(int value) {
+        add("@" + value);
+    }
+
+    @Override
+    public void address(String symbol) {
+        add("@" + symbol);
+    }
+
+    @Override
+    public void address(String symbol, int suffix) {
+        add("@" + symbol + suffix);
+    }
+
+    @Override
+    public void address(String prefix, String symbol, int suffix) {
+        add("@" + prefix + symbol + suffix);
+    }
+
+    @Override
+    public void label(String name) {
+        drain();
+        super.label(name);
+    }
+
+    @Override
+    public void label(String prefix, String name, int suffix) {
+        drain();
+        super.label(prefix, name, suffix);
+    }
+
+    @Override
+    public void comment(String text) {
+        if (pendingComments == null) pendingComments = new ArrayList<>();
+        pendingComments.add(text);
+    }
+
+    @Override
+    public void comment(String text, String name) {
+        comment(text + name);
+    }
+
+    @Override
+    public void comment(String text, int n) {
+        comment(text + n);
+    }
+
+    @Override
+    public void append(AsmWriter other) {
+        drain();
+        super.append(other);
+
+        if (other instanceof PeepholeWriter peephole &&
+            peephole.rules == rules) {
+            for (int i = 0; i < fired.length; i++) {
+                fired[i] += peephole.fired[i];
+            }
+            removed += peephole.removed;
+        }
+    }
+
+    @Override
+    public void append(byte[] code) {
+        drain();
+        super.append(code);
+    }
+
+    @Override
+    public byte[] toByteArray() {
+        drain();
+        return super.toByteArray();
+    }
+
+    @Override
+    public void flush() {
+        drain();
+        super.flush();
+    }
+
+    private void add(String instruction) {
+        window.add(instruction);
+        notes.add(pendingComments);
+        pendingComments = null;
+        optimize();
+
+        while (window.size() > WINDOW_SIZE) {
+            writeFirst();
+        }
+    }
+
+    // The window was fully rewritten before the last instruction came
+    // in, so only a match ending there can be new. A rewrite can only
+    // create matches that overlap it, so checking starts again just
+    // far enough back for the longest rule to reach it.
+    private void optimize() {
+        for (int r = 0; r < rules.size(); r++) {
+            int start = window.size() - rules.get(r).length();
+
+            if (tryRule(r, start)) {
+                optimizeFrom(start);
+                return;
+            }
+        }
+    }
+
+    private void optimizeFrom(int changed) {
+        int start = Math.max(0, changed - longestRule + 1);
+
+        while (start < window.size()) {
+            boolean rewritten = false;
+
+            for (int r = 0; r < rules.size() && !rewritten; r++) {
+                rewritten = tryRule(r, start);
+            }
+
+            if (rewritten) {
+                start = Math.max(0, start - longestRule + 1);
+            } else {
+                start++;
+            }
+        }
+    }
+
+    private boolean tryRule(int r, int start) {
+        if (start < 0) return false;
+
+        List<String> replacement = rules.get(r).apply(window, start);
+        if (replacement == null) return false;
+
+        replace(start, rules.get(r).length(), replacement);
+        fired[r]++;
+        return true;
+    }
+
+    private void replace(int start, int length, List<String> replacement) {
+        List<String> comments = null;
+
+        for (int i = start; i < start + length; i++) {
+            if (notes.get(i) == null) continue;
+            if (comments == null) comments = new ArrayList<>();
+            comments.addAll(notes.get(i));
+        }
+
+        window.subList(start, start + length).clear();
+        notes.subList(start, start + length).clear();
+        window.addAll(start, replacement);
+
+        for (int i = 0; i < replacement.size(); i++) {
+            notes.add(start, null);
+        }
+
+        removed += length - replacement.size();
+
+        if (comments == null) {
+            // Nothing to move.
+        } else if (start < notes.size()) {
+            if (notes.get(start) != null) comments.addAll(notes.get(start));
+            notes.set(start, comments);
+        } else {
+            if (pendingComments != null) comments.addAll(pendingComments);
+            pendingComments = comments;
+        }
+    }
+
+    private void writeFirst() {
+        String instruction = window.remove(0);
+        List<String> comments = notes.remove(0);
+
+        if (comments != null) {
+            for (String comment : comments) super.comment(comment);
+        }
+
+        if (instruction.startsWith("@")) {
+            super.address(instruction.substring(1));
+        } else {
+            super.instruction(encoded.computeIfAbsent(instruction,
+                AsmWriter::encode));
+        }
+    }
+
+    private void drain() {
+        while (!window.isEmpty()) {
+            writeFirst();
+        }
+
+        if (pendingComments != null) {
+            for (String comment : pendingComments) super.comment(comment);
+            pendingComments = null;
+        }
+    }
+
+    public String report() {
+        StringBuilder report = new StringBuilder(String.format(
+            "Peephole: %d instructions removed%n", removed));
+
+        for (int r = 0; r < rules.size(); r++) {
+            report.append(String.format("  %-16s %d%n",
+                rules.get(r).name(), fired[r]));
+        }
+
+        return report.toString();
+    }
+}
@@ -0,0 +1,149 @@
+//Written by David Owen and Noah Barrall
+
+package vmtranslator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Where a program's ROM goes: Hack instructions written per kind of
+// VM command (push local, call, eq, ...) and per enclosing function.
+// CodeWriter fills it in with --profile. Code outside any function
+// (the bootstrap, the compact call routines) is counted under a name
+// in parentheses.
+public class RomProfile {
+
+    // Instructions the Hack ROM holds.
+    public static final int ROM_SIZE = 32768;
+
+    private final Map<String, Integer> kinds = new HashMap<>();
+    private final Map<String, Integer> functions = new HashMap<>();
+
+    public void add(String kind, String function, int instructions) {
+        if (instructions == 0) return;
+        kinds.merge(kind, instructions, Integer::sum);
+        functions.merge(function, instructions, Integer::sum);
+    }
+
+    // Adds other's counts, e.g. for a file translated into its own
+    // buffer.
+    public void add(RomProfile other) {
+        other.kinds.forEach((k, n) -> kinds.merge(k, n, Integer::sum));
+        other.functions.forEach(
+            (f, n) -> functions.merge(f, n, Integer::sum));
+    }
+
+    public int total() {
+        return kinds.values().stream().mapToInt(n -> n).sum();
+    }
+
+    public Map<String, Integer> kinds() {
+        return kinds;
+    }
+
+    public Map<String, Integer> functions() {
+        return functions;
+    }
+
+    // Largest first, then by name, so reports don't change from run
+    // to run.
+    private static List<Map.Entry<String, Integer>> sorted(
+        Map<String, Integer> counts) {
+        List<Map.Entry<String, Integer>> entries =
+            new ArrayList<>(counts.entrySet());
+        entries.sort(Map.Entry.<String, Integer>comparingByValue()
+            .reversed().thenComparing(Map.Entry.comparingByKey()));
+        return entries;
+    }
+
+    public String report() {
+        int total = total();
+        StringBuilder report = new StringBuilder(String.format(
+            "ROM: %d of %d instructions (%.1f%%)%n", total, ROM_SIZE,
+            100.0 * total / ROM_SIZE));
+
+        report.append("  By command:\n");
+        appendCounts(report, kinds, total);
+        report.append("  By function:\n");
+        appendCounts(report, functions, total);
+
+        return report.toString();
+    }
+
+    private static void appendCounts(StringBuilder report,
+        Map<String, Integer> counts, int total) {
+        for (Map.Entry<String, Integer> entry : sorted(counts)) {
+            report.append(String.format("    %-30s %6d %5.1f%%%n",
+                entry.getKey(), entry.getValue(),
+                100.0 * entry.getValue() / total));
+        }
+    }
+
+    public String toJson() {
+        StringBuilder json = new StringBuilder("{\n");
+        json.append("  \"total\": ").append(total()).append(",\n");
+        json.append("  \"romSize\": ").append(ROM_SIZE).append(",\n");
+        appendJson(json, "byCommand", "command", kinds);
+        json.append(",\n");
+        appendJson(json, "byFunction", "function", functions);
+        return json.append("\n}\n").toString();
+    }
+
+    private static void appendJson(StringBuilder json, String name,
+        String key, Map<String, Integer> counts) {
+        json.append("  \"").append(name).append("\": [");
+        String separator = "\n";
+
+        for (Map.Entry<String, Integer> entry : sorted(counts)) {
+            json.append(separator).append("    {\"").append(key)
+                .append("\": \"").append(escape(entry.getKey()))
+                .append("\", \"instructions\": ")
+                .append(entry.getValue()).append('}');
+            separator = ",\n";
+        }
+
+        json.append("\n  ]");
+    }
+
+    // The counts as text, one per line, tab separated:
+    //
+    //   command   push constant  12
+    //   function  Main.main      40
+    //
+    // for TranslationCache to keep next to a fragment.
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+
+        for (Map.Entry<String, Integer> entry : sorted(kinds)) {
+            text.append("command\t").append(entry.getKey()).append('\t')
+                .append(entry.getValue()).append('\n');
+        }
+
+        for (Map.Entry<String, Integer> entry : sorted(functions)) {
+            text.append("function\t").append(entry.getKey()).append('\t')
+                .append(entry.getValue()).append('\n');
+        }
+
+        return text.toString();
+    }
+
+    public static RomProfile parse(String text) {
+        RomProfile profile = new RomProfile();
+
+        for (String line : text.split("\n")) {
+            if (line.isEmpty()) continue;
+            String[] fields = line.split("\t");
+            Map<String, Integer> counts = fields[0].equals("command") ?
+                profile.kinds : profile.functions;
+            counts.put(fields[1], Integer.parseInt(fields[2]));
+        }
+
+        return profile;
+    }
+
+    private static String escape(String text) {
+        return text.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}
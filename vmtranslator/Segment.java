@@ -0,0 +1,48 @@
+//Written by David Owen and Noah Barrall
+
+package vmtranslator;
+
+public enum Segment {
+
+    CONSTANT("constant"),
+    LOCAL("local"),
+    ARGUMENT("argument"),
+    THIS("this"),
+    THAT("that"),
+    POINTER("pointer"),
+    TEMP("temp"),
+    STATIC("static");
+
+    private static final Segment[] VALUES = values();
+
+    private final String vmName;
+
+    private Segment(String vmName) {
+        this.vmName = vmName;
+    }
+
+    public static Segment of(String vmName) {
+        switch (vmName) {
+            case "constant": return CONSTANT;
+            case "local": return LOCAL;
+            case "argument": return ARGUMENT;
+            case "this": return THIS;
+            case "that": return THAT;
+            case "pointer": return POINTER;
+            case "temp": return TEMP;
+            case "static": return STATIC;
+            default: throw new IllegalArgumentException(
+                "Unknown segment: " + vmName);
+        }
+    }
+
+    public static Segment of(int ordinal) {
+        return VALUES[ordinal];
+    }
+
+    // The segment as written in .vm files, e.g. "local".
+    @Override
+    public String toString() {
+        return vmName;
+    }
+}
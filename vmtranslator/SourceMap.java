@@ -0,0 +1,157 @@
+//Written by David Owen and Noah Barrall
+
+package vmtranslator;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Which .vm file, line and function each ROM address was translated
+// from. CodeWriter fills it in with --source-map, one entry where the
+// code for a new line starts, and VmTranslator writes it next to the
+// .asm file as Prog.map:
+//
+//   file      0  Main.vm
+//   function  0  Main.main
+//   120       0  7  0
+//
+// (tab separated), i.e. the file and function names once each, then
+// address, file, line and function for each entry. An entry covers
+// addresses up to the next one. Code that isn't from a .vm file (the
+// bootstrap, the compact call routines) has file "-" and line 0.
+//
+// Peephole rules can take out instructions after their entry was
+// made, so with --peephole an entry may start a few addresses late.
+public class SourceMap {
+
+    public static final String NO_FILE = "-";
+
+    public record Entry(int address, String file, int line,
+        String function) {}
+
+    private final List<Entry> entries = new ArrayList<>();
+
+    // Starts a new entry at address, unless it's the same line as the
+    // last one. Commands with no line (VmCode.NO_LINE) are taken to be
+    // part of the line before them.
+    public void add(int address, String file, int line, String function) {
+        Entry last = entries.isEmpty() ? null :
+            entries.get(entries.size() - 1);
+
+        if (last != null && line == VmCode.NO_LINE &&
+            last.file().equals(file)) {
+            line = last.line();
+        }
+
+        if (last != null && last.file().equals(file) &&
+            last.line() == line && last.function().equals(function)) {
+            return;
+        }
+
+        // Nothing was written for the last entry.
+        if (last != null && last.address() == address) {
+            entries.remove(entries.size() - 1);
+        }
+
+        entries.add(new Entry(address, file, line, function));
+    }
+
+    // Adds other's entries, for code that now starts at offset.
+    public void add(SourceMap other, int offset) {
+        for (Entry entry : other.entries) {
+            add(entry.address() + offset, entry.file(), entry.line(),
+                entry.function());
+        }
+    }
+
+    public List<Entry> entries() {
+        return entries;
+    }
+
+    // The entry covering address, or null if it comes before them all.
+    public Entry lookup(int address) {
+        int low = 0;
+        int high = entries.size() - 1;
+
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+
+            if (entries.get(middle).address() <= address) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+
+        return high < 0 ? null : entries.get(high);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        Map<String, Integer> files = new HashMap<>();
+        Map<String, Integer> functions = new HashMap<>();
+
+        for (Entry entry : entries) {
+            int file = number(text, "file", files, entry.file());
+            int function = number(text, "function", functions,
+                entry.function());
+            text.append(entry.address()).append('\t').append(file)
+                .append('\t').append(entry.line()).append('\t')
+                .append(function).append('\n');
+        }
+
+        return text.toString();
+    }
+
+    // name's number, given (and written) the first time it's seen.
+    private static int number(StringBuilder text, String kind,
+        Map<String, Integer> numbers, String name) {
+        Integer number = numbers.get(name);
+
+        if (number == null) {
+            number = numbers.size();
+            numbers.put(name, number);
+            text.append(kind).append('\t').append(number).append('\t')
+                .append(name).append('\n');
+        }
+
+        return number;
+    }
+
+    public void write(Path path) throws IOException {
+        Files.writeString(path, toString());
+    }
+
+    public static SourceMap parse(String text) {
+        SourceMap map = new SourceMap();
+        List<String> files = new ArrayList<>();
+        List<String> functions = new ArrayList<>();
+
+        for (String line : text.split("\n")) {
+            if (line.isEmpty()) continue;
+            String[] fields = line.split("\t");
+
+            if (fields[0].equals("file")) {
+                files.add(fields[2]);
+            } else if (fields[0].equals("function")) {
+                functions.add(fields[2]);
+            } else {
+                map.entries.add(new Entry(Integer.parseInt(fields[0]),
+                    files.get(Integer.parseInt(fields[1])),
+                    Integer.parseInt(fields[2]),
+                    functions.get(Integer.parseInt(fields[3]))));
+            }
+        }
+
+        return map;
+    }
+
+    public static SourceMap read(Path path) throws IOException {
+        return parse(Files.readString(path));
+    }
+}
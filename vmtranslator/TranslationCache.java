@@ -0,0 +1,181 @@
+//Written by David Owen and Noah Barrall
+
+package vmtranslator;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+// Translated code for single .vm files, kept on disk between runs.
+// Each entry is a plain .asm fragment (with a .map and .rom for
+// --source-map and --profile) named by a SHA-256 of the file's name
+// and contents, the options that affect code generation and the
+// translator itself (see fingerprint). The fragments come from
+// per-file CodeWriters, whose labels all start with the file name, so
+// a fragment can go anywhere in the output.
+public class TranslationCache {
+
+    private static String translatorFingerprint;
+
+    private final Path directory;
+    private final String fingerprint;
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+
+    public TranslationCache(Path directory) {
+        this(directory, fingerprint());
+    }
+
+    // With a fingerprint of your own, e.g. to test what a new
+    // translator does with an old cache.
+    public TranslationCache(Path directory, String fingerprint) {
+        this.directory = directory;
+        this.fingerprint = fingerprint;
+    }
+
+    // A SHA-256 of this package's class files (or of the jar it was
+    // loaded from), so fragments written by a translator that wrote
+    // different code are never reused, without anyone remembering to
+    // change a version number.
+    public static synchronized String fingerprint() {
+        if (translatorFingerprint != null) return translatorFingerprint;
+
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            Path location = Path.of(TranslationCache.class
+                .getProtectionDomain().getCodeSource().getLocation()
+                .toURI());
+
+            if (Files.isDirectory(location)) {
+                Path classes = location.resolve("vmtranslator");
+
+                try (Stream<Path> files = Files.list(classes)) {
+                    for (Path file : files.filter(
+                        f -> f.toString().endsWith(".class")).sorted()
+                        .toList()) {
+                        digest.update(file.getFileName().toString()
+                            .getBytes(StandardCharsets.UTF_8));
+                        digest.update(Files.readAllBytes(file));
+                    }
+                }
+            } else {
+                digest.update(Files.readAllBytes(location));
+            }
+
+            translatorFingerprint = HexFormat.of().formatHex(
+                digest.digest());
+            return translatorFingerprint;
+
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (NoSuchAlgorithmException | URISyntaxException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // extra is anything else the translation depends on. The file
+    // name is part of the key because statics and labels are named
+    // after it, so identical files under two names translate
+    // differently.
+    public String key(Path file, TranslatorOptions options, String extra) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update((fingerprint + "\n" + file.getFileName() + "\n" +
+                options.codeKey() + "\n" + extra + "\n")
+                .getBytes(StandardCharsets.UTF_8));
+            digest.update(Files.readAllBytes(file));
+            return HexFormat.of().formatHex(digest.digest());
+
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // A translated file: its code and, if the options asked for them
+    // when it was translated, its source map and ROM profile, with
+    // addresses from the start of the fragment.
+    public record Entry(byte[] code, SourceMap sourceMap,
+        RomProfile profile) {
+
+        public static Entry of(CodeWriter writer) {
+            return new Entry(writer.toByteArray(), writer.sourceMap(),
+                writer.profile());
+        }
+    }
+
+    // The entry stored under key, or null. An entry written without
+    // a source map or profile that options want counts as missing.
+    public Entry get(String key, TranslatorOptions options) {
+        try {
+            byte[] code = Files.readAllBytes(entryFile(key, ".asm"));
+            SourceMap sourceMap = options.sourceMap ?
+                SourceMap.read(entryFile(key, ".map")) : null;
+            RomProfile profile = options.profile ?
+                RomProfile.parse(Files.readString(entryFile(key, ".rom"))) :
+                null;
+
+            hits.incrementAndGet();
+            return new Entry(code, sourceMap, profile);
+        } catch (IOException e) {
+            misses.incrementAndGet();
+            return null;
+        }
+    }
+
+    private Path entryFile(String key, String extension) {
+        return directory.resolve(key + extension);
+    }
+
+    // Each file is written to a temporary file and moved into place,
+    // so other threads or runs never see half an entry. The .asm goes
+    // last, since get looks for it first.
+    public void put(String key, Entry entry) {
+        try {
+            Files.createDirectories(directory);
+            if (entry.sourceMap() != null) {
+                write(key, ".map", entry.sourceMap().toString().getBytes(
+                    StandardCharsets.UTF_8));
+            }
+            if (entry.profile() != null) {
+                write(key, ".rom", entry.profile().toString().getBytes(
+                    StandardCharsets.UTF_8));
+            }
+            write(key, ".asm", entry.code());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void write(String key, String extension, byte[] bytes)
+        throws IOException {
+        Path temporary = Files.createTempFile(directory, key, ".tmp");
+        Files.write(temporary, bytes);
+        Files.move(temporary, entryFile(key, extension),
+            StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public int hits() {
+        return hits.get();
+    }
+
+    public int misses() {
+        return misses.get();
+    }
+
+    public String report() {
+        return String.format("Cache: %d files reused, %d translated%n",
+            hits.get(), misses.get());
+    }
+}
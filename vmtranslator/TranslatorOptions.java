@@ -0,0 +1,135 @@
+//Written by David Owen and Noah Barrall
+
+package vmtranslator;
+
+// Switches that change how VmTranslator reads and writes code. The
+// defaults give the plain translation, which still writes constants
+// the ALU can make (0, 1 and -1) and small segment indexes in the
+// fewest instructions.
+public class TranslatorOptions {
+
+    // --parallel: translate directory files on fork-join workers.
+    public boolean parallel;
+
+    // --mmap: read .vm files with MappedParser.
+    public boolean mapped;
+
+    // --compact-calls: go through the shared $$CALL and $$RETURN
+    // routines instead of writing the frame code at every call.
+    public boolean compactCalls;
+
+    // --peephole: rewrite the generated instructions with
+    // PeepholeWriter.DEFAULT_RULES.
+    public boolean peephole;
+
+    // --cache-tos: keep the top of the stack in D between commands
+    // where possible.
+    public boolean cacheTos;
+
+    // --fuse-branches: write eq/lt/gt [not] if-goto as one compare and
+    // jump.
+    public boolean fuseBranches;
+
+    // --whole-program: leave out functions that Sys.init never
+    // reaches.
+    public boolean wholeProgram;
+
+    // --cache: reuse translations of unchanged files from .vmcache in
+    // the source directory (see TranslationCache).
+    public boolean cache;
+
+    // --stream: read VM commands from standard input and write the
+    // assembly to standard output. --parallel, --mmap, --cache,
+    // --source-map, --hack, --hack-binary and --watch need files, and
+    // --whole-program and --inline need the whole program, so they're
+    // ignored.
+    public boolean stream;
+
+    // --fold: do constant arithmetic and drop identities before
+    // translating (see ConstantFolder).
+    public boolean fold;
+
+    // --inline: write small leaf functions' bodies in place of calls
+    // to them (see Inliner). --inline-budget=n also sets the largest
+    // body inlined, in VM commands.
+    public boolean inline;
+    public int inlineBudget = Inliner.DEFAULT_BUDGET;
+
+    // --hack: assemble in memory (see assembler.HackAssembler) and
+    // write Prog.hack instead of Prog.asm. --hack-binary writes the
+    // instructions packed two bytes each to Prog.bin.
+    public boolean hack;
+    public boolean hackBinary;
+
+    // --profile: report where the ROM goes (see RomProfile), as text
+    // and as JSON next to the .asm file.
+    public boolean profile;
+
+    // --source-map: write Prog.map, the .vm file, line and function
+    // each ROM address came from (see SourceMap), e.g. for the
+    // emulator's profiler.
+    public boolean sourceMap;
+
+    // --intrinsics: write calls to Math.multiply, Memory.peek and
+    // Memory.poke, and Math.divide by powers of 2, as Hack code
+    // instead of calling the OS (see CodeWriter.intrinsicLength).
+    public boolean intrinsics;
+
+    // --tail-calls: write call followed by return as a jump that
+    // reuses the current frame (see CodeWriter.writeTailCall), so
+    // deep recursion runs in constant stack space.
+    public boolean tailCalls;
+
+    // --watch: keep running, translating again whenever a .vm file
+    // in the source directory changes (see Watcher). --cache is
+    // ignored, since translated files are kept in memory.
+    public boolean watch;
+
+    // --strict-rom: fail instead of warning when the program doesn't
+    // fit in ROM.
+    public boolean strictRom;
+
+    // Returns false if arg isn't an option.
+    public boolean parse(String arg) {
+        switch (arg) {
+            case "--parallel": parallel = true; return true;
+            case "--mmap": mapped = true; return true;
+            case "--compact-calls": compactCalls = true; return true;
+            case "--peephole": peephole = true; return true;
+            case "--cache-tos": cacheTos = true; return true;
+            case "--fuse-branches": fuseBranches = true; return true;
+            case "--whole-program": wholeProgram = true; return true;
+            case "--cache": cache = true; return true;
+            case "--stream": stream = true; return true;
+            case "--inline": inline = true; return true;
+            case "--hack": hack = true; return true;
+            case "--hack-binary": hackBinary = true; return true;
+            case "--fold": fold = true; return true;
+            case "--profile": profile = true; return true;
+            case "--strict-rom": strictRom = true; return true;
+            case "--source-map": sourceMap = true; return true;
+            case "--watch": watch = true; return true;
+            case "--intrinsics": intrinsics = true; return true;
+            case "--tail-calls": tailCalls = true; return true;
+            default:
+        }
+
+        if (arg.startsWith("--inline-budget=")) {
+            inline = true;
+            inlineBudget = Integer.parseInt(arg.substring(
+                "--inline-budget=".length()));
+            return true;
+        }
+
+        return false;
+    }
+
+    // The options that change CodeWriter's output, as a string.
+    public String codeKey() {
+        return "compactCalls=" + compactCalls + " peephole=" + peephole +
+            " cacheTos=" + cacheTos + " fuseBranches=" + fuseBranches +
+            " wholeProgram=" + wholeProgram + " fold=" + fold +
+            " inline=" + (inline ? inlineBudget : -1) +
+            " intrinsics=" + intrinsics + " tailCalls=" + tailCalls;
+    }
+}
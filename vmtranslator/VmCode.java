@@ -0,0 +1,198 @@
+//Written by David Owen and Noah Barrall
+
+package vmtranslator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// The commands of one .vm file, decoded once into parallel arrays:
+// an opcode, a segment, an integer argument and a symbol id (for
+// labels and function names) per command. Symbols are interned, so
+// two commands naming the same label have the same id. Commands read
+// from a parser also keep their line in the file, for source maps.
+public class VmCode {
+
+    public static final int NO_SYMBOL = -1;
+
+    // The line of a command that wasn't read from a file, e.g. one
+    // written by ConstantFolder or Inliner.
+    public static final int NO_LINE = 0;
+
+    private final String name;
+    private byte[] opcodes = new byte[256];
+    private byte[] segments = new byte[256];
+    private int[] args = new int[256];
+    private int[] symbolIds = new int[256];
+    private int[] lines = new int[256];
+    private int size;
+
+    private final List<String> symbols = new ArrayList<>();
+    private final Map<String, Integer> symbolIndex = new HashMap<>();
+
+    // name is the file name without .vm; it's used for static
+    // variables.
+    public VmCode(String name) {
+        this.name = name;
+    }
+
+    public static VmCode decode(VmParser parser, String name) {
+        VmCode code = new VmCode(name);
+
+        while (parser.hasMoreLines()) {
+            parser.advance();
+            code.add(parser);
+        }
+
+        return code;
+    }
+
+    // Appends the parser's current command.
+    public void add(VmParser parser) {
+        switch (parser.commandType()) {
+            case C_PUSH:
+            case C_POP:
+                add(Opcode.of(parser.commandType(), null),
+                    Segment.of(parser.arg1()), parser.arg2(), null);
+                break;
+            case C_LABEL:
+            case C_GOTO:
+            case C_IF:
+                add(Opcode.of(parser.commandType(), null),
+                    null, 0, parser.arg1());
+                break;
+            case C_FUNCTION:
+            case C_CALL:
+                add(Opcode.of(parser.commandType(), null),
+                    null, parser.arg2(), parser.arg1());
+                break;
+            case C_RETURN:
+                add(Opcode.RETURN, null, 0, null);
+                break;
+            default:
+                add(Opcode.arithmetic(parser.arg1()), null, 0, null);
+        }
+
+        lines[size - 1] = parser.lineNumber();
+    }
+
+    public void add(Opcode opcode, Segment segment, int arg,
+        String symbol) {
+
+        if (size == opcodes.length) {
+            int capacity = size * 2;
+            opcodes = Arrays.copyOf(opcodes, capacity);
+            segments = Arrays.copyOf(segments, capacity);
+            args = Arrays.copyOf(args, capacity);
+            symbolIds = Arrays.copyOf(symbolIds, capacity);
+            lines = Arrays.copyOf(lines, capacity);
+        }
+
+        opcodes[size] = (byte) opcode.ordinal();
+        segments[size] = (byte) (segment == null ? -1 : segment.ordinal());
+        args[size] = arg;
+        symbolIds[size] = symbol == null ? NO_SYMBOL : intern(symbol);
+        lines[size] = NO_LINE;
+        size++;
+    }
+
+    // Appends code[start] to code[end - 1].
+    public void copy(VmCode code, int start, int end) {
+        for (int i = start; i < end; i++) {
+            add(code.opcode(i), code.segment(i), code.arg(i), code.symbol(i));
+            lines[size - 1] = code.line(i);
+        }
+    }
+
+    // Drops every command from code[size] on.
+    public void truncate(int size) {
+        this.size = Math.min(size, this.size);
+    }
+
+    public int intern(String symbol) {
+        Integer id = symbolIndex.get(symbol);
+
+        if (id == null) {
+            id = symbols.size();
+            symbols.add(symbol);
+            symbolIndex.put(symbol, id);
+        }
+
+        return id;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public Opcode opcode(int i) {
+        return Opcode.of(opcodes[i]);
+    }
+
+    public Segment segment(int i) {
+        return segments[i] == -1 ? null : Segment.of(segments[i]);
+    }
+
+    public int arg(int i) {
+        return args[i];
+    }
+
+    public int line(int i) {
+        return lines[i];
+    }
+
+    public int symbolId(int i) {
+        return symbolIds[i];
+    }
+
+    public String symbol(int i) {
+        return symbolIds[i] == NO_SYMBOL ? null : symbols.get(symbolIds[i]);
+    }
+
+    public String symbolName(int symbolId) {
+        return symbols.get(symbolId);
+    }
+
+    public int symbolCount() {
+        return symbols.size();
+    }
+
+    // The commands as VM source, one per line.
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+
+        for (int i = 0; i < size; i++) {
+            text.append(opcode(i));
+
+            switch (opcode(i)) {
+                case PUSH:
+                case POP:
+                    text.append(' ').append(segment(i)).append(' ')
+                        .append(arg(i));
+                    break;
+                case FUNCTION:
+                case CALL:
+                    text.append(' ').append(symbol(i)).append(' ')
+                        .append(arg(i));
+                    break;
+                case LABEL:
+                case GOTO:
+                case IF_GOTO:
+                    text.append(' ').append(symbol(i));
+                    break;
+                default:
+            }
+
+            text.append('\n');
+        }
+
+        return text.toString();
+    }
+}
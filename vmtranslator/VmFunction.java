@@ -0,0 +1,37 @@
+//Written by David Owen and Noah Barrall
+
+package vmtranslator;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// The commands of one function: code[start] is its function command
+// and code[end - 1] its last command.
+public record VmFunction(VmCode code, int start, int end) {
+
+    public String name() {
+        return code.symbol(start);
+    }
+
+    public int numLocals() {
+        return code.arg(start);
+    }
+
+    // Every function in code, in order.
+    public static List<VmFunction> functionsOf(VmCode code) {
+        List<VmFunction> functions = new ArrayList<>();
+        int start = -1;
+
+        for (int i = 0; i < code.size(); i++) {
+            if (code.opcode(i) != Opcode.FUNCTION) continue;
+            if (start != -1) functions.add(new VmFunction(code, start, i));
+            start = i;
+        }
+
+        if (start != -1) {
+            functions.add(new VmFunction(code, start, code.size()));
+        }
+
+        return functions;
+    }
+}
@@ -0,0 +1,23 @@
+//Written by David Owen and Noah Barrall
+
+package vmtranslator;
+
+// The parser API that VmTranslator.translateFile relies on, so that
+// it can read from either Parser or MappedParser.
+public interface VmParser {
+
+    boolean hasMoreLines();
+
+    void advance();
+
+    CommandType commandType();
+
+    String arg1();
+
+    int arg2();
+
+    // The current command's line in the file, counting from 1.
+    int lineNumber();
+
+    void close();
+}
@@ -2,78 +2,427 @@
 
 package vmtranslator;
 
-import static vmtranslator.CommandType.*;
+import assembler.HackAssembler;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
 
 public class VmTranslator {
 
-    private static void translateFile(Parser parser, CodeWriter writer) {
+    private static VmParser openParser(String filename, boolean mapped) {
+        if (!mapped) return new Parser(filename);
+
+        try {
+            return new MappedParser(filename);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static VmCode decodeFile(File file,
+        TranslatorOptions options) {
+        VmParser parser = openParser(file.getPath(), options.mapped);
+        VmCode code = VmCode.decode(parser,
+            file.getName().replaceAll(".vm", ""));
+        parser.close();
+        return options.fold ? ConstantFolder.fold(code) : code;
+    }
+
+    private static AsmWriter newBuffer(TranslatorOptions options) {
+        return options.peephole ?
+            new PeepholeWriter(PeepholeWriter.DEFAULT_RULES) :
+            new AsmWriter();
+    }
+
+    // Translates one file into its own buffer, with its own label
+    // namespace, so that files can be translated independently.
+    static CodeWriter translateToBuffer(VmCode code,
+        TranslatorOptions options) {
+        CodeWriter writer = new CodeWriter(newBuffer(options), code.name(),
+            options);
+        writer.writeCode(code);
+        return writer;
+    }
+
+    // file's translated code, from cache if it has it. code is only
+    // called for files that have to be translated.
+    private static TranslationCache.Entry translateCached(File file,
+        Supplier<VmCode> code, String extraKey, TranslationCache cache,
+        TranslatorOptions options) {
+        String key = cache.key(file.toPath(), options, extraKey);
+        TranslationCache.Entry entry = cache.get(key, options);
+
+        if (entry == null) {
+            entry = TranslationCache.Entry.of(
+                translateToBuffer(code.get(), options));
+            cache.put(key, entry);
+        }
+
+        return entry;
+    }
+
+    // With the cache, files are only decoded if they have to be
+    // translated, except in whole-program mode or with inlining, where
+    // every file is needed for the call graph. There, which functions
+    // were kept is part of the key, and with inlining (which brings in
+    // code from other files) the file's whole code is.
+    private static List<TranslationCache.Entry> translateCached(
+        List<File> files, TranslationCache cache,
+        TranslatorOptions options) {
+        IntStream indexes = IntStream.range(0, files.size());
+        if (options.parallel) indexes = indexes.parallel();
+
+        if (!options.wholeProgram && !options.inline) {
+            return indexes.mapToObj(i -> translateCached(files.get(i),
+                () -> decodeFile(files.get(i), options), "", cache,
+                options)).toList();
+        }
+
+        List<VmCode> decoded = decodeFiles(files, options);
+        if (options.inline) decoded = inline(decoded, options);
+        List<VmCode> program = options.wholeProgram ?
+            dropUnusedFunctions(decoded, options) : decoded;
+
+        return indexes.mapToObj(i -> translateCached(files.get(i),
+            () -> program.get(i), options.inline ?
+                program.get(i).toString() : keptFunctions(program.get(i)),
+            cache, options)).toList();
+    }
+
+    private static String keptFunctions(VmCode code) {
+        StringBuilder names = new StringBuilder();
+
+        for (VmFunction function : VmFunction.functionsOf(code)) {
+            names.append(function.name()).append(' ');
+        }
+
+        return names.toString();
+    }
+
+    private static List<VmCode> decodeFiles(List<File> files,
+        TranslatorOptions options) {
+        return (options.parallel ? files.parallelStream() : files.stream())
+            .map(file -> decodeFile(file, options))
+            .toList();
+    }
+
+    // Instructions function would take up in ROM.
+    private static int sizeOf(VmFunction function,
+        TranslatorOptions options) {
+        AsmWriter scratch = newBuffer(options);
+        new CodeWriter(scratch, function.code().name(), options)
+            .writeCode(function.code(), function.start(), function.end());
+        return scratch.instructionCount();
+    }
+
+    // Leaves out every function that Sys.init (which writeInit calls)
+    // can't reach, and reports what was dropped.
+    static List<VmCode> dropUnusedFunctions(List<VmCode> program,
+        TranslatorOptions options) {
+        CallGraph graph = new CallGraph(program);
+
+        if (graph.function("Sys.init") == null) {
+            System.out.println("Whole program: no Sys.init, " +
+                "keeping every function");
+            return program;
+        }
+
+        Set<String> reachable = graph.reachableFrom("Sys.init");
+        List<VmFunction> dropped = new ArrayList<>();
+        Map<VmFunction, Integer> sizes = new HashMap<>();
+
+        for (VmFunction function : graph.functions()) {
+            if (!reachable.contains(function.name())) {
+                dropped.add(function);
+                sizes.put(function, sizeOf(function, options));
+            }
+        }
+
+        dropped.sort(Comparator.comparing(sizes::get).reversed());
+        int saved = sizes.values().stream().mapToInt(n -> n).sum();
+
+        System.out.printf("Whole program: kept %d of %d functions, " +
+            "dropped %d (%d instructions)%n", reachable.size(),
+            graph.functions().size(), dropped.size(), saved);
+
+        for (VmFunction function : dropped) {
+            System.out.printf("  %-30s %6d%n", function.name(),
+                sizes.get(function));
+        }
+
+        return graph.retain(reachable);
+    }
+
+    static List<VmCode> inline(List<VmCode> program,
+        TranslatorOptions options) {
+        Inliner inliner = new Inliner(program, options.inlineBudget);
+        program = inliner.inline();
+        System.out.print(inliner.report());
+        return program;
+    }
+
+    // Static variables in streamed code that comes before any
+    // function go under this name.
+    private static final String STREAM_NAME = "Stdin";
+
+    // Commands held before writing, unless a function is longer.
+    private static final int CHUNK_SIZE = 1024;
+
+    // Reads VM commands from in and writes the assembly to out as it
+    // goes. Commands are written a function at a time (or CHUNK_SIZE
+    // commands at a time for longer functions), so memory use doesn't
+    // grow with the input. There are no file names, so static
+    // variables are named after the class of the function using them,
+    // which is what the Jack compiler's one-class-per-file output
+    // would give. Returns false if the program is too big for ROM
+    // with --strict-rom.
+    public static boolean translate(InputStream in, OutputStream out,
+        TranslatorOptions options) {
+        WritableByteChannel channel = Channels.newChannel(out);
+        AsmWriter asm = options.peephole ?
+            new PeepholeWriter(channel, PeepholeWriter.DEFAULT_RULES) :
+            new AsmWriter(channel);
+        CodeWriter writer = new CodeWriter(asm, STREAM_NAME, options);
+        writer.writeInit();
+
+        Parser parser = new Parser(in);
+        VmCode chunk = new VmCode(STREAM_NAME);
 
         while (parser.hasMoreLines()) {
             parser.advance();
-            CommandType type = parser.commandType();
-
-            if (type.equals(C_PUSH) || type.equals(C_POP)) {
-                writer.writePushPop(type, parser.arg1(), parser.arg2());
-            } else if (type.equals(C_LABEL)) {
-                writer.writeLabel(parser.arg1());
-            } else if (type.equals(C_GOTO)) {
-                writer.writeGoto(parser.arg1());
-            } else if (type.equals(C_IF)) {
-                writer.writeIf(parser.arg1());
-            } else if (type.equals(C_FUNCTION)) {
-                writer.writeFunction(parser.arg1(), parser.arg2());
-            } else if (type.equals(C_RETURN)) {
-                writer.writeReturn();
-            } else if (type.equals(C_CALL)) {
-                writer.writeCall(parser.arg1(), parser.arg2());
-            } else { // C_ARITHMETIC
-                writer.writeArithmetic(parser.arg1());
+
+            if (parser.commandType() == CommandType.C_FUNCTION) {
+                writeChunk(writer, chunk, options);
+                String function = parser.arg1();
+                chunk = new VmCode(function.substring(0,
+                    Math.max(function.indexOf('.'), 0)));
+
+            } else if (chunk.size() >= CHUNK_SIZE &&
+                canSplitAfter(chunk.opcode(chunk.size() - 1))) {
+                writeChunk(writer, chunk, options);
+                chunk = new VmCode(chunk.name());
             }
+
+            chunk.add(parser);
         }
+
+        writeChunk(writer, chunk, options);
+        parser.close();
+        writer.close();
+
+        if (options.profile) System.err.print(writer.profile().report());
+        return checkRomSize(writer.instructionCount(), options);
     }
 
-    public static void main(String[] args) throws IOException {
-        String outputFilename = null;
+    // Warns when the program is too big for the Hack ROM. With
+    // --strict-rom that's an error, and it returns false.
+    static boolean checkRomSize(int instructions,
+        TranslatorOptions options) {
+        if (instructions <= RomProfile.ROM_SIZE) return true;
+
+        System.err.printf("%s: %d instructions, ROM holds %d%n",
+            options.strictRom ? "Error" : "Warning", instructions,
+            RomProfile.ROM_SIZE);
 
-        if (args[0].endsWith(".vm")) {
-            outputFilename = args[0].replaceAll(".vm", ".asm");
+        return !options.strictRom;
+    }
+
+    private static void writeChunk(CodeWriter writer, VmCode chunk,
+        TranslatorOptions options) {
+        writer.writeCode(options.fold ? ConstantFolder.fold(chunk) : chunk);
+    }
+
+    // Not in the middle of an eq/lt/gt [not] if-goto run, which
+    // --fuse-branches writes as one.
+    private static boolean canSplitAfter(Opcode opcode) {
+        return opcode != Opcode.EQ && opcode != Opcode.LT &&
+            opcode != Opcode.GT && opcode != Opcode.NOT;
+    }
+
+    // Prog for .../Prog.asm.
+    private static String programName(String outputFilename) {
+        String name = new File(outputFilename).getName();
+        return name.substring(0, name.length() - ".asm".length());
+    }
+
+    // Sorted by name so the output doesn't depend on the order
+    // listFiles happens to return.
+    static List<File> vmFiles(String dirName) {
+        File[] files = (new File(dirName)).listFiles(
+            (dir, name) -> name.endsWith(".vm"));
+        Arrays.sort(files, Comparator.comparing(File::getName));
+        return Arrays.asList(files);
+    }
+
+    // Prog.asm in the directory for .../Prog or .../Prog/, Prog.asm
+    // next to Prog.vm.
+    static String outputFilename(String source) {
+        if (source.endsWith(".vm")) return source.replaceAll(".vm", ".asm");
+
+        if (source.endsWith("/"))
+            source = source.substring(0, source.length() - 1);
+
+        if (source.contains("/")) {
+            return source + source.substring(source.lastIndexOf("/")) +
+                ".asm";
         } else {
-            if (args[0].endsWith("/"))
-                args[0] = args[0].substring(0, args[0].length() - 1);
-
-            if (args[0].contains("/")) {
-                outputFilename = args[0] +
-                    args[0].substring(args[0].lastIndexOf("/")) + ".asm";
-            } else {
-                outputFilename = args[0] + "/" + args[0] + ".asm";
-            }
+            return source + "/" + source + ".asm";
+        }
+    }
+
+    public static void main(String[] args)
+        throws IOException, InterruptedException {
+        String source = null;
+        TranslatorOptions options = new TranslatorOptions();
+
+        for (String arg : args) {
+            if (!options.parse(arg)) source = arg;
+        }
+
+        if (options.stream) {
+            if (!translate(System.in, System.out, options)) System.exit(1);
+            return;
         }
 
-        CodeWriter writer = new CodeWriter(outputFilename);
+        if (options.watch) {
+            new Watcher(source, outputFilename(source), options).run();
+            return;
+        }
+
+        if (!translate(source, options)) System.exit(1);
+    }
+
+    // Translates source, a .vm file or a directory of them, to
+    // outputFilename(source) and prints the reports options ask for.
+    // Returns false if the program is too big for ROM with
+    // --strict-rom.
+    public static boolean translate(String source,
+        TranslatorOptions options) throws IOException {
+        String outputFilename = outputFilename(source);
+        CodeWriter writer = openOutput(outputFilename, options);
         writer.writeInit();
 
+        List<File> files = source.endsWith(".vm") ?
+            List.of(new File(source)) : vmFiles(source);
+        TranslationCache cache = null;
 
-        if (args[0].endsWith(".vm")) {
-            Parser parser = new Parser(args[0]);
-            translateFile(parser, writer);
-            parser.close();
-        
-        } else {
-            for (File file : (new File(args[0])).listFiles()) {
-                String filename = file.getName();
-
-                if (filename.endsWith(".vm")) {
-                    writer.setFilename(filename.replaceAll(".vm", ""));
-                    Parser parser = new Parser(args[0] + "/" + filename);
-                    translateFile(parser, writer);
-                    parser.close();
-                }
+        if (options.cache) {
+            File directory = source.endsWith(".vm") ?
+                new File(source).getAbsoluteFile().getParentFile() :
+                new File(source);
+            cache = new TranslationCache(
+                directory.toPath().resolve(".vmcache"));
+
+            for (TranslationCache.Entry entry :
+                translateCached(files, cache, options)) {
+                writer.append(entry);
             }
+
+        } else {
+            translate(decodeFiles(files, options), writer, options);
         }
 
         writer.close();
+        writeOutput(writer, outputFilename, options);
+
+        // Cached entries don't keep the call and peephole counts, so
+        // those reports are only for a fresh translation.
+        if (cache != null) {
+            System.out.print(cache.report());
+        } else {
+            if (options.compactCalls) {
+                System.out.print(writer.callReport());
+            }
+
+            if (options.peephole) {
+                System.out.print(writer.peepholeReport());
+            }
+        }
+
+        if (options.profile) {
+            System.out.print(writer.profile().report());
+            Files.writeString(Path.of(outputFilename
+                .replaceAll(".asm$", ".rom.json")),
+                writer.profile().toJson());
+        }
+
+        if (options.sourceMap) writeSourceMap(writer, outputFilename);
+
+        return checkRomSize(writer.instructionCount(), options);
+    }
+
+    // The writer for outputFilename: the file itself, or with --hack an
+    // in-memory buffer for writeOutput to assemble.
+    static CodeWriter openOutput(String outputFilename,
+        TranslatorOptions options) throws IOException {
+        return options.hack || options.hackBinary ?
+            new CodeWriter(newBuffer(options), programName(outputFilename),
+                options) :
+            new CodeWriter(outputFilename, options);
+    }
+
+    static void writeSourceMap(CodeWriter writer, String outputFilename)
+        throws IOException {
+        writer.sourceMap().write(Path.of(outputFilename
+            .replaceAll(".asm$", ".map")));
+    }
+
+    // Finishes what openOutput started, once writer is closed.
+    static void writeOutput(CodeWriter writer, String outputFilename,
+        TranslatorOptions options) throws IOException {
+        if (options.hack || options.hackBinary) {
+            HackAssembler.write(HackAssembler.assemble(writer.toByteArray()),
+                outputFilename.replaceAll("\\.asm$",
+                    options.hackBinary ? ".bin" : ".hack"),
+                options.hackBinary);
+        }
+    }
+
+    private static void translate(List<VmCode> program, CodeWriter writer,
+        TranslatorOptions options) {
+
+        if (options.inline) {
+            program = inline(program, options);
+        }
+
+        if (options.wholeProgram) {
+            program = dropUnusedFunctions(program, options);
+        }
+
+        if (options.parallel) {
+            // Each file is translated on a fork-join worker; the
+            // buffers come back in file order, so the output is the
+            // same from run to run.
+            List<CodeWriter> buffers = program.parallelStream()
+                .map(code -> translateToBuffer(code, options))
+                .toList();
+
+            for (CodeWriter buffer : buffers) {
+                writer.append(buffer);
+            }
+
+        } else {
+            // The same per-file buffers, one at a time, so the output
+            // doesn't depend on --parallel.
+            for (VmCode code : program) {
+                writer.append(translateToBuffer(code, options));
+            }
+        }
     }
 }
@@ -0,0 +1,192 @@
+//Written by David Owen and Noah Barrall
+
+package vmtranslator;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+// --watch: translates the source once, then waits on a WatchService
+// for its .vm files to change, and writes the output again. Each
+// file's decoded code and translation are kept in memory, so only the
+// files that changed are parsed and translated again; the rest are
+// just appended after the bootstrap. Each file has its own buffer, as
+// in a normal translation, so the output is the same.
+//
+// --inline and --whole-program look at the whole program, so with
+// them every file is translated again (from memory, not parsed).
+public class Watcher {
+
+    // Editors often save a file in several steps (write a temporary
+    // file, rename it), so changes are collected for this long first.
+    private static final long SETTLE_MILLIS = 50;
+
+    private final Path directory;
+    private final String onlyFile;  // For a single .vm source.
+    private final String outputFilename;
+    private final TranslatorOptions options;
+
+    // By file name, so files are written in the same order as without
+    // --watch.
+    private final Map<String, VmCode> decoded = new TreeMap<>();
+    private final Map<String, CodeWriter> translated = new HashMap<>();
+
+    // Files that failed to decode and haven't been fixed or deleted
+    // since. Nothing is written while there are any, or the output
+    // would silently leave them out.
+    private final Set<String> broken = new TreeSet<>();
+
+    public Watcher(String source, String outputFilename,
+        TranslatorOptions options) {
+        File file = new File(source).getAbsoluteFile();
+
+        if (source.endsWith(".vm")) {
+            directory = file.getParentFile().toPath();
+            onlyFile = file.getName();
+        } else {
+            directory = file.toPath();
+            onlyFile = null;
+        }
+
+        this.outputFilename = outputFilename;
+        this.options = options;
+    }
+
+    private boolean watched(String name) {
+        return onlyFile == null ? name.endsWith(".vm") :
+            name.equals(onlyFile);
+    }
+
+    // Runs until interrupted.
+    public void run() throws IOException, InterruptedException {
+        WatchService service = FileSystems.getDefault().newWatchService();
+        directory.register(service, ENTRY_CREATE, ENTRY_MODIFY,
+            ENTRY_DELETE);
+
+        TreeSet<String> changed = new TreeSet<>();
+        for (File file : VmTranslator.vmFiles(directory.toString())) {
+            if (watched(file.getName())) changed.add(file.getName());
+        }
+
+        System.out.println("Watching " + directory + " for changes");
+
+        while (true) {
+            rebuild(changed);
+
+            changed.clear();
+            WatchKey key = service.take();
+
+            do {
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == OVERFLOW) {
+                        changed.addAll(decoded.keySet());
+                        continue;
+                    }
+                    String name = event.context().toString();
+                    if (watched(name)) changed.add(name);
+                }
+
+                key.reset();
+                Thread.sleep(SETTLE_MILLIS);
+                key = service.poll();
+            } while (key != null);
+        }
+    }
+
+    // Decodes the changed files (names in the source directory) again
+    // and writes the output. Returns how many files were translated,
+    // or -1 if a file (changed now or before) couldn't be decoded and
+    // nothing was written.
+    public int rebuild(Collection<String> changed) throws IOException {
+        if (changed.isEmpty()) return 0;
+
+        long start = System.nanoTime();
+
+        for (String name : changed) {
+            File file = directory.resolve(name).toFile();
+            translated.remove(name);
+            decoded.remove(name);
+            broken.remove(name);
+
+            if (!file.exists()) continue;
+
+            try {
+                decoded.put(name, VmTranslator.decodeFile(file, options));
+            } catch (RuntimeException e) {
+                // Probably saved half edited; wait for the next save.
+                System.out.printf("%s: %s%n", name, e);
+                broken.add(name);
+            }
+        }
+
+        if (!broken.isEmpty()) {
+            System.out.println(outputFilename + " not written; " +
+                "waiting for " + String.join(", ", broken));
+            return -1;
+        }
+
+        int count = write();
+        System.out.printf("Wrote %s in %.1f ms (%d of %d files " +
+            "translated)%n", outputFilename,
+            (System.nanoTime() - start) / 1e6, count, decoded.size());
+        return count;
+    }
+
+    // Returns how many files had to be translated.
+    private int write() throws IOException {
+        List<String> names = new ArrayList<>(decoded.keySet());
+        List<VmCode> program = new ArrayList<>(decoded.values());
+
+        if (options.inline || options.wholeProgram) {
+            translated.clear();
+            if (options.inline) {
+                program = VmTranslator.inline(program, options);
+            }
+            if (options.wholeProgram) {
+                program = VmTranslator.dropUnusedFunctions(program,
+                    options);
+            }
+        }
+
+        CodeWriter writer = VmTranslator.openOutput(outputFilename,
+            options);
+        writer.writeInit();
+        int count = 0;
+
+        for (int i = 0; i < program.size(); i++) {
+            CodeWriter buffer = translated.get(names.get(i));
+
+            if (buffer == null) {
+                buffer = VmTranslator.translateToBuffer(program.get(i),
+                    options);
+                translated.put(names.get(i), buffer);
+                count++;
+            }
+
+            writer.append(buffer);
+        }
+
+        writer.close();
+        VmTranslator.writeOutput(writer, outputFilename, options);
+        if (options.sourceMap) {
+            VmTranslator.writeSourceMap(writer, outputFilename);
+        }
+        VmTranslator.checkRomSize(writer.instructionCount(), options);
+
+        return count;
+    }
+}
@@ -0,0 +1,69 @@
+package vmtranslator.test;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.*;
+
+import vmtranslator.BatchTranslator;
+import vmtranslator.TranslatorOptions;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+public class BatchTranslatorTest {
+
+    // p1, p2 and bad (which doesn't parse), and nested/q1, each with
+    // one Sys.vm.
+    private static Path programs() throws IOException {
+        Path directory = Files.createTempDirectory("BatchTranslatorTest");
+
+        for (String name : new String[] {"p1", "p2", "nested/q1"}) {
+            Files.createDirectories(directory.resolve(name));
+            Files.writeString(directory.resolve(name).resolve("Sys.vm"),
+                    "function Sys.init 0\nlabel HALT\ngoto HALT\n");
+        }
+
+        Files.createDirectories(directory.resolve("bad"));
+        Files.writeString(directory.resolve("bad/Sys.vm"),
+                "function Sys.init 0\nblah\n");
+        return directory;
+    }
+
+    @Test
+    public void testExpand() throws IOException {
+        Path directory = programs();
+        String p1 = directory.resolve("p1").toString();
+        String p2 = directory.resolve("p2").toString();
+
+        assertEquals(List.of(p1, p2), BatchTranslator.expand(
+                directory + "/p?"));
+        assertEquals(List.of(p1, p2), BatchTranslator.expand(
+                directory + "/p?/"));
+        assertEquals(List.of(p1, p2), BatchTranslator.expand(
+                directory + "/p{1,2}"));
+        assertEquals(List.of(directory.resolve("nested/q1").toString()),
+                BatchTranslator.expand(directory + "/*/q*"));
+        assertEquals(List.of(directory.resolve("nested/q1").toString()),
+                BatchTranslator.expand(directory + "/**/q1"));
+        assertEquals(List.of(), BatchTranslator.expand(
+                directory + "/none/*"));
+    }
+
+    @Test
+    public void testFailure()
+            throws IOException, InterruptedException {
+        Path directory = programs();
+        List<BatchTranslator.Result> results = BatchTranslator.translateAll(
+                BatchTranslator.expand(directory + "/{p1,bad,p2}"),
+                new TranslatorOptions(), 2);
+
+        assertEquals(3, results.size());
+        assertTrue(results.get(0).source().endsWith("bad"));
+        assertTrue(results.get(0).error().contains("Unknown command"));
+        assertNull(results.get(1).error());
+        assertNull(results.get(2).error());
+        assertTrue(Files.exists(directory.resolve("p1/p1.asm")));
+        assertTrue(Files.exists(directory.resolve("p2/p2.asm")));
+    }
+}
@@ -0,0 +1,48 @@
+package vmtranslator.test;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.*;
+
+import java.util.List;
+import java.util.Set;
+
+import vmtranslator.CallGraph;
+import vmtranslator.Opcode;
+import vmtranslator.Parser;
+import vmtranslator.VmCode;
+
+public class CallGraphTest {
+
+    private static VmCode decode(String name, String source) {
+        return VmCode.decode(new Parser(source), name);
+    }
+
+    @Test
+    public void testReachable() {
+        VmCode sys = decode("Sys", "function Sys.init 0\n" +
+                "call Main.main 0\nlabel L\ngoto L");
+        VmCode main = decode("Main", "function Main.main 0\n" +
+                "call Main.f 0\nreturn\nfunction Main.f 0\n" +
+                "call Main.f 0\ncall Math.abs 1\nreturn\n" +
+                "function Main.unused 0\ncall Main.f 0\nreturn");
+        CallGraph graph = new CallGraph(List.of(sys, main));
+
+        assertEquals(Set.of("Sys.init", "Main.main", "Main.f"),
+                graph.reachableFrom("Sys.init"));
+        assertEquals(Set.of(), graph.reachableFrom("Math.abs"));
+    }
+
+    @Test
+    public void testRetain() {
+        VmCode main = decode("Main", "function Main.a 0\nreturn\n" +
+                "function Main.b 1\npush local 0\nreturn");
+        CallGraph graph = new CallGraph(List.of(main));
+        VmCode kept = graph.retain(Set.of("Main.b")).get(0);
+
+        assertEquals("Main", kept.name());
+        assertEquals(3, kept.size());
+        assertEquals(Opcode.FUNCTION, kept.opcode(0));
+        assertEquals("Main.b", kept.symbol(0));
+        assertEquals(1, kept.arg(0));
+    }
+}
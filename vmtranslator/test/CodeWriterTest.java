@@ -0,0 +1,197 @@
+package vmtranslator.test;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.*;
+
+import vmtranslator.AsmWriter;
+import vmtranslator.CodeWriter;
+import vmtranslator.Parser;
+import vmtranslator.TranslatorOptions;
+import vmtranslator.VmCode;
+
+public class CodeWriterTest {
+
+    // The instructions written for source, without comments.
+    private static String translate(String source, String... flags) {
+        return TestCode.instructions(TestCode.translate(source, flags));
+    }
+
+    @Test
+    public void testPushSmallIndex() {
+        assertEquals("@LCL\nA=M\nD=M\n@SP\nM=M+1\nA=M-1\nM=D\n",
+                translate("push local 0"));
+        assertEquals("@ARG\nA=M+1\nD=M\n@SP\nM=M+1\nA=M-1\nM=D\n",
+                translate("push argument 1"));
+        assertEquals("@THAT\nA=M+1\nA=A+1\nD=M\n@SP\nM=M+1\nA=M-1\nM=D\n",
+                translate("push that 2"));
+        assertTrue(translate("push this 3").startsWith("@3\nD=A\n"));
+    }
+
+    @Test
+    public void testPopSmallIndex() {
+        assertEquals("@SP\nAM=M-1\nD=M\n@THAT\nA=M+1\nA=A+1\nM=D\n",
+                translate("pop that 2"));
+        assertFalse(translate("pop local 4").contains("R13"));
+        assertFalse(translate("pop local 12").contains("R13"));
+    }
+
+    // With no flags, constants the ALU can make are stored directly,
+    // and so is -1 written as push constant 1, neg or 0, not.
+    @Test
+    public void testConstants() {
+        assertEquals("@SP\nM=M+1\nA=M-1\nM=1\n",
+                translate("push constant 1"));
+        assertEquals("@SP\nM=M+1\nA=M-1\nM=-1\n",
+                translate("push constant 0\nnot"));
+        assertEquals("@SP\nM=M+1\nA=M-1\nM=-1\n",
+                translate("push constant 1\nneg"));
+        assertEquals("D=0\n@SP\nM=M+1\nA=M-1\nM=D\n",
+                translate("push constant 0", "--peephole"));
+        assertEquals("@2\nD=A\n@SP\nM=M+1\nA=M-1\nM=D\n",
+                translate("push constant 2"));
+
+        // Only an adjacent pair is -1.
+        assertTrue(translate("push constant 1\nlabel L\nneg")
+                .endsWith("M=1\n(L)\n@SP\nA=M-1\nM=-M\n"));
+    }
+
+    // Once the frame is pushed, ARG = SP - 5 - nArgs.
+    @Test
+    public void testCallArg() {
+        assertTrue(translate("call Main.f 2").contains(
+                "@SP\nD=M\n@7\nD=D-A\n@ARG\nM=D\n"));
+        assertTrue(translate("call Main.f 0").contains(
+                "@SP\nD=M\n@5\nD=D-A\n@ARG\nM=D\n"));
+    }
+
+    // A compact call site only passes the function, argument count
+    // and return address to $$CALL. The routines are written once.
+    @Test
+    public void testCompactCalls() {
+        String code = translate("function Main.f 0\ncall Main.g 2\n" +
+                "call Main.g 1\nreturn\nreturn", "--compact-calls");
+
+        assertTrue(code.startsWith("(Main.f)\n@Main.g\nD=A\n@R13\n" +
+                "M=D\n@2\nD=A\n@R14\nM=D\n@Main$RETURN_0\nD=A\n" +
+                "@$$CALL\n0;JMP\n(Main$RETURN_0)\n"));
+        assertTrue(code.contains("\n@$$RETURN\n0;JMP\n@$$RETURN\n"));
+        assertTrue(code.contains("($$CALL)"));
+        assertEquals(code.indexOf("($$CALL)"),
+                code.lastIndexOf("($$CALL)"));
+        assertEquals(code.indexOf("($$RETURN)"),
+                code.lastIndexOf("($$RETURN)"));
+        assertFalse(translate("call Main.g 2").contains("$$CALL"));
+    }
+
+    // With a cached top of stack, add pops only x, and pop and if-goto
+    // use D directly. A label writes the cached value back first.
+    @Test
+    public void testCacheTos() {
+        String add = translate("push local 0\npush constant 3\nadd\n" +
+                "pop local 1", "--cache-tos");
+        assertTrue(add.contains("@3\nD=A\n@SP\nAM=M-1\nD=D+M\n"));
+        assertTrue(add.endsWith("D=D+M\n@LCL\nA=M+1\nM=D\n"));
+
+        assertTrue(translate("push local 0\nif-goto L", "--cache-tos")
+                .endsWith("D=M\n@L\nD;JNE\n"));
+        assertTrue(translate("push constant 3\nneg\nlabel L",
+                "--cache-tos").endsWith(
+                "D=-D\n@SP\nM=M+1\nA=M-1\nM=D\n(L)\n"));
+    }
+
+    // A comparison and if-goto become D=x-y and one jump, with the
+    // condition flipped by a not in between.
+    @Test
+    public void testFuseBranches() {
+        String[][] cases = {
+            {"eq", "JEQ"}, {"lt", "JLT"}, {"gt", "JGT"},
+            {"eq\nnot", "JNE"}, {"lt\nnot", "JGE"}, {"gt\nnot", "JLE"}};
+
+        for (String[] c : cases) {
+            String source = "push local 0\npush local 1\n" + c[0] +
+                    "\nif-goto L";
+            String fused = translate(source, "--fuse-branches");
+            assertTrue(fused.endsWith("@SP\nAM=M-1\nD=M\n@SP\n" +
+                    "AM=M-1\nD=M-D\n@L\nD;" + c[1] + "\n"), c[0]);
+            assertFalse(fused.contains("END_"), c[0]);
+            assertTrue(translate(source, "--fuse-branches",
+                    "--cache-tos").endsWith("@SP\nAM=M-1\nD=M-D\n" +
+                    "@L\nD;" + c[1] + "\n"), c[0]);
+        }
+    }
+
+    // Up to 8 locals are cleared in straight-line code, after moving
+    // SP past them; more go through a loop.
+    @Test
+    public void testLocals() {
+        assertEquals("(Main.f)\n", translate("function Main.f 0"));
+        assertEquals("(Main.f)\n@SP\nM=M+1\nM=M+1\nAM=M+1\nA=A-1\n" +
+                "M=0\nA=A-1\nM=0\nA=A-1\nM=0\n",
+                translate("function Main.f 3"));
+
+        for (int n = 1; n <= 12; n++) {
+            String code = translate("function Main.f " + n);
+            int cleared = code.split("M=0", -1).length - 1;
+
+            if (n <= 3) {
+                assertEquals(n, cleared);
+                assertEquals(n, code.split("M=M\\+1", -1).length - 1);
+            } else if (n <= 8) {
+                assertEquals(n, cleared);
+                assertTrue(code.startsWith("(Main.f)\n@" + n +
+                        "\nD=A\n@SP\nAM=D+M\n"));
+            } else {
+                assertTrue(code.startsWith("(Main.f)\n@" + n +
+                        "\nD=A\n(Main$LOCALS_0)\n@SP\nAM=M+1\n"));
+                assertTrue(code.endsWith("D=D-1\n@Main$LOCALS_0\n" +
+                        "D;JGT\n"));
+            }
+        }
+    }
+
+    @Test
+    public void testIntrinsics() {
+        String multiply = translate("push local 0\npush constant 4\n" +
+                "call Math.multiply 2", "--intrinsics");
+        assertEquals("@LCL\nA=M\nD=M\n@SP\nM=M+1\nA=M-1\nM=D\n" +
+                "@SP\nA=M-1\nD=M\nM=M+D\nD=M\nM=M+D\n", multiply);
+
+        String peek = translate("push constant 9\ncall Memory.peek 1",
+                "--intrinsics");
+        assertFalse(peek.contains("JMP"));
+
+        String general = translate("push local 0\npush local 1\n" +
+                "call Math.multiply 2", "--intrinsics");
+        assertTrue(general.contains("@$$MULTIPLY\n0;JMP"));
+        assertTrue(general.contains("($$MULTIPLY)"));
+        assertFalse(general.contains("$$DIVIDE_POW2"));
+
+        String divide = translate("push local 0\npush constant 3\n" +
+                "call Math.divide 2", "--intrinsics");
+        assertTrue(divide.contains("@Math.divide"));
+    }
+
+    @Test
+    public void testAppendedIntrinsics() {
+        TranslatorOptions options = TestCode.options("--intrinsics");
+        CodeWriter writer = new CodeWriter(new AsmWriter(), "Main",
+                options);
+        writer.append("@0\nD=A\n".getBytes());
+        writer.close();
+        assertEquals("@0\nD=A\n", new String(writer.toByteArray()));
+
+        // A fragment, as TranslationCache keeps: not closed, so
+        // without the routines.
+        CodeWriter fragment = new CodeWriter(new AsmWriter(), "Main",
+                options);
+        fragment.writeCode(VmCode.decode(new Parser("push local 0\n" +
+                "push local 1\ncall Math.multiply 2"), "Main"));
+
+        writer = new CodeWriter(new AsmWriter(), "Main", options);
+        writer.append(fragment.toByteArray());
+        writer.close();
+        String code = new String(writer.toByteArray());
+        assertTrue(code.contains("($$MULTIPLY)"));
+        assertFalse(code.contains("$$DIVIDE_POW2"));
+    }
+}
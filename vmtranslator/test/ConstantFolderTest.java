@@ -0,0 +1,68 @@
+package vmtranslator.test;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.*;
+
+import vmtranslator.ConstantFolder;
+import vmtranslator.Opcode;
+import vmtranslator.Parser;
+import vmtranslator.Segment;
+import vmtranslator.VmCode;
+
+public class ConstantFolderTest {
+
+    private static VmCode fold(String source) {
+        return ConstantFolder.fold(VmCode.decode(new Parser(source), "Main"));
+    }
+
+    private static void assertConstant(VmCode code, int k) {
+        assertEquals(Opcode.PUSH, code.opcode(0));
+        assertEquals(Segment.CONSTANT, code.segment(0));
+        assertEquals(k, code.arg(0));
+    }
+
+    @Test
+    public void testArithmetic() {
+        VmCode code = fold("push constant 2\npush constant 3\nadd\n" +
+                "push constant 4\nsub\nneg\npush constant 6\nand");
+        assertEquals(1, code.size());
+        assertConstant(code, 6);  // -(2 + 3 - 4) & 6
+    }
+
+    @Test
+    public void testOverflow() {
+        VmCode code = fold("push constant 32767\npush constant 1\nadd");
+        assertEquals(2, code.size());
+        assertConstant(code, 32767);
+        assertEquals(Opcode.NOT, code.opcode(1));  // -32768
+
+        // 32767 - (-1) wraps to -32768, so lt is true, as on Hack.
+        code = fold("push constant 32767\npush constant 1\nneg\nlt");
+        assertConstant(code, 1);
+        assertEquals(Opcode.NEG, code.opcode(1));
+    }
+
+    @Test
+    public void testIdentities() {
+        VmCode code = fold("push local 0\npush constant 0\nadd\n" +
+                "neg\nneg\nnot\nnot\npush constant 0\nnot\nand");
+        assertEquals(1, code.size());
+        assertEquals(Opcode.PUSH, code.opcode(0));
+        assertEquals(Segment.LOCAL, code.segment(0));
+    }
+
+    @Test
+    public void testIfGoto() {
+        VmCode code = fold("push constant 0\nif-goto A\n" +
+                "push constant 1\nif-goto B\nlabel A");
+        assertEquals(2, code.size());
+        assertEquals(Opcode.GOTO, code.opcode(0));
+        assertEquals("B", code.symbol(0));
+    }
+
+    @Test
+    public void testLabelsStopFolding() {
+        VmCode code = fold("push constant 1\nlabel L\npush constant 2\nadd");
+        assertEquals(4, code.size());
+    }
+}
@@ -0,0 +1,74 @@
+package vmtranslator.test;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.*;
+
+import java.util.List;
+
+import vmtranslator.Inliner;
+import vmtranslator.Opcode;
+import vmtranslator.Parser;
+import vmtranslator.Segment;
+import vmtranslator.VmCode;
+
+public class InlinerTest {
+
+    private static final String POINT = "function Point.getX 0\n" +
+            "push argument 0\npop pointer 0\npush this 0\nreturn\n" +
+            "function Point.loop 0\nlabel L\ngoto L\npush constant 0\n" +
+            "return\nfunction Point.count 0\npush static 0\nreturn";
+
+    private static VmCode decode(String name, String source) {
+        return VmCode.decode(new Parser(source), name);
+    }
+
+    private static int count(VmCode code, Opcode opcode) {
+        int count = 0;
+        for (int i = 0; i < code.size(); i++) {
+            if (code.opcode(i) == opcode) count++;
+        }
+        return count;
+    }
+
+    @Test
+    public void testAccessor() {
+        VmCode main = decode("Main", "function Main.main 0\n" +
+                "push static 1\npush constant 3000\n" +
+                "call Point.getX 1\nreturn");
+        VmCode inlined = new Inliner(List.of(main,
+                decode("Point", POINT)), 12).inline().get(0);
+
+        assertEquals(0, count(inlined, Opcode.CALL));
+        // The argument goes in Main.2, after the statics Main uses,
+        // and THIS in Main.3 while the body runs.
+        assertEquals("function Main.main 0\npush static 1\n" +
+                "push constant 3000\npush pointer 0\npop static 3\n" +
+                "pop static 2\npush static 2\npop pointer 0\n" +
+                "push this 0\npush static 3\npop pointer 0\nreturn\n",
+                inlined.toString());
+    }
+
+    @Test
+    public void testNotInlined() {
+        VmCode main = decode("Main", "function Main.main 0\n" +
+                "call Point.loop 0\ncall Point.count 0\n" +
+                "call Point.getX 0\nreturn");
+        Inliner inliner = new Inliner(List.of(main, decode("Point", POINT)),
+                12);
+        VmCode inlined = inliner.inline().get(0);
+
+        // A loop, another file's static and a missing argument.
+        assertEquals(3, count(inlined, Opcode.CALL));
+    }
+
+    @Test
+    public void testBudget() {
+        VmCode main = decode("Main", "function Main.main 0\n" +
+                "push constant 1\ncall Point.getX 1\nreturn");
+        VmCode inlined = new Inliner(List.of(main, decode("Point", POINT)),
+                2).inline().get(0);
+
+        assertEquals(1, count(inlined, Opcode.CALL));
+        assertEquals(Segment.CONSTANT, inlined.segment(1));
+    }
+}
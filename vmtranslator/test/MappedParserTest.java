@@ -0,0 +1,80 @@
+package vmtranslator.test;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.*;
+
+import static vmtranslator.CommandType.*;
+import vmtranslator.MappedParser;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class MappedParserTest {
+
+    private MappedParser parse(String source) throws IOException {
+        Path file = Files.createTempFile("MappedParserTest", ".vm");
+        Files.writeString(file, source);
+        file.toFile().deleteOnExit();
+        return new MappedParser(file.toString());
+    }
+
+    @Test
+    public void testArithmetic() throws IOException {
+        MappedParser parser = parse("add \n sub \n neg \n eq \n " +
+                "gt \n lt \n and \n or \n not");
+
+        for (String s : new String[] { "add", "sub", "neg", "eq",
+                "gt", "lt", "and", "or", "not" }) {
+            parser.advance();
+            assertEquals(C_ARITHMETIC, parser.commandType());
+            assertEquals(s, parser.arg1());
+        }
+    }
+
+    @Test
+    public void testPushPop() throws IOException {
+        MappedParser parser = parse("push constant 32767\npop pointer 1");
+        parser.advance();
+        assertEquals(C_PUSH, parser.commandType());
+        assertEquals("constant", parser.arg1());
+        assertEquals(32767, parser.arg2());
+        parser.advance();
+        assertEquals(C_POP, parser.commandType());
+        assertEquals("pointer", parser.arg1());
+        assertEquals(1, parser.arg2());
+    }
+
+    @Test
+    public void testFunctionsAndLabels() throws IOException {
+        MappedParser parser = parse("function Main.f 2\nlabel L$1\n" +
+                "if-goto L$1\ncall Main.f 1\nreturn\n");
+        parser.advance();
+        assertEquals(C_FUNCTION, parser.commandType());
+        assertEquals("Main.f", parser.arg1());
+        assertEquals(2, parser.arg2());
+        parser.advance();
+        assertEquals(C_LABEL, parser.commandType());
+        String label = parser.arg1();
+        parser.advance();
+        assertEquals(C_IF, parser.commandType());
+        assertSame(label, parser.arg1());
+        parser.advance();
+        assertEquals(C_CALL, parser.commandType());
+        assertEquals(1, parser.arg2());
+        parser.advance();
+        assertEquals(C_RETURN, parser.commandType());
+        assertEquals(false, parser.hasMoreLines());
+    }
+
+    @Test
+    public void testCommentsAndWhiteSpace() throws IOException {
+        MappedParser parser = parse(
+                " ////\r\n// ab cd \n \t push  constant   5 // x\n// efg");
+        parser.advance();
+        assertEquals(C_PUSH, parser.commandType());
+        assertEquals("constant", parser.arg1());
+        assertEquals(5, parser.arg2());
+        assertEquals(false, parser.hasMoreLines());
+    }
+}
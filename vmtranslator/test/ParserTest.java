@@ -6,6 +6,8 @@ import org.junit.jupiter.api.*;
 import static vmtranslator.CommandType.*;
 import vmtranslator.Parser;
 
+import java.io.ByteArrayInputStream;
+
 public class ParserTest {
 
     @Test
@@ -47,6 +49,19 @@ public class ParserTest {
         assertEquals(C_PUSH, parser.commandType());
         assertEquals("constant", parser.arg1());
         assertEquals(5, parser.arg2());
+        assertEquals(3, parser.lineNumber());
+        assertEquals(false, parser.hasMoreLines());
+    }
+
+    @Test
+    public void testInputStream() {
+        Parser parser = new Parser(new ByteArrayInputStream(
+                "push constant 7\n// x\nadd\n".getBytes()));
+        parser.advance();
+        assertEquals(C_PUSH, parser.commandType());
+        assertEquals(7, parser.arg2());
+        parser.advance();
+        assertEquals(C_ARITHMETIC, parser.commandType());
         assertEquals(false, parser.hasMoreLines());
     }
 }
@@ -0,0 +1,59 @@
+package vmtranslator.test;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.*;
+
+import java.util.List;
+
+import vmtranslator.AsmWriter;
+import vmtranslator.PeepholeRule;
+import vmtranslator.PeepholeWriter;
+
+public class PeepholeWriterTest {
+
+    private static String text(AsmWriter writer) {
+        return new String(writer.toByteArray())
+            .replaceAll("(?m)^ +", "").strip();
+    }
+
+    @Test
+    public void testVariables() {
+        PeepholeRule rule = new PeepholeRule("reload",
+                new String[] {"@$a", "$i", "@$a"},
+                new String[] {"@$a", "$i"});
+
+        assertEquals(List.of("@SP", "M=M+1"),
+                rule.apply(List.of("@SP", "M=M+1", "@SP"), 0));
+        assertNull(rule.apply(List.of("@SP", "M=M+1", "@LCL"), 0));
+        assertNull(rule.apply(List.of("@SP", "A=M", "@SP"), 0));
+    }
+
+    @Test
+    public void testPushAdd() {
+        PeepholeWriter writer =
+                new PeepholeWriter(PeepholeWriter.DEFAULT_RULES);
+
+        for (String s : new String[] {"@7", "D=A", "@SP", "M=M+1",
+                "A=M-1", "M=D", "@SP", "AM=M-1", "D=M", "A=A-1",
+                "M=M+D"}) {
+            if (s.startsWith("@")) {
+                writer.address(s.substring(1));
+            } else {
+                writer.instruction(AsmWriter.encode(s));
+            }
+        }
+
+        assertEquals("@7\nD=A\n@SP\nA=M-1\nM=M+D", text(writer));
+    }
+
+    @Test
+    public void testLabelsStopRules() {
+        PeepholeWriter writer =
+                new PeepholeWriter(PeepholeWriter.DEFAULT_RULES);
+        writer.address("SP");
+        writer.label("L");
+        writer.address("SP");
+
+        assertEquals("@SP\n(L)\n@SP", text(writer));
+    }
+}
@@ -0,0 +1,61 @@
+package vmtranslator.test;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.*;
+
+import vmtranslator.CodeWriter;
+import vmtranslator.RomProfile;
+
+public class RomProfileTest {
+
+    private static final String SOURCE = "function Main.a 0\n" +
+            "push constant 1\npush local 0\nadd\nreturn\n" +
+            "function Main.b 2\npush argument 0\nlt\nif-goto L\n" +
+            "label L\ncall Main.a 0\nreturn";
+
+    private static CodeWriter profiled(String flags) {
+        return TestCode.translate(SOURCE, "--profile", flags);
+    }
+
+    @Test
+    public void testTotals() {
+        for (String flags : new String[] {"", "--peephole",
+                "--cache-tos", "--fuse-branches"}) {
+            CodeWriter writer = profiled(flags);
+            RomProfile profile = writer.profile();
+
+            assertEquals(writer.instructionCount(), profile.total());
+            assertEquals(profile.total(), profile.functions().values()
+                    .stream().mapToInt(n -> n).sum());
+        }
+    }
+
+    @Test
+    public void testKinds() {
+        RomProfile profile = profiled("--fuse-branches").profile();
+
+        assertTrue(profile.kinds().containsKey("push constant"));
+        assertTrue(profile.kinds().containsKey("lt if-goto"));
+        assertFalse(profile.kinds().containsKey("if-goto"));
+        assertEquals(2, profile.functions().size());
+    }
+
+    @Test
+    public void testJson() {
+        RomProfile profile = new RomProfile();
+        profile.add("call", "Main.\"q\"", 45);
+        String json = profile.toJson();
+
+        assertTrue(json.contains("\"total\": 45"));
+        assertTrue(json.contains("\"function\": \"Main.\\\"q\\\"\""));
+    }
+
+    @Test
+    public void testParse() {
+        RomProfile profile = profiled("--fuse-branches").profile();
+        RomProfile parsed = RomProfile.parse(profile.toString());
+
+        assertEquals(profile.kinds(), parsed.kinds());
+        assertEquals(profile.functions(), parsed.functions());
+    }
+}
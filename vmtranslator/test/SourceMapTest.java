@@ -0,0 +1,71 @@
+package vmtranslator.test;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.*;
+
+import vmtranslator.SourceMap;
+import vmtranslator.VmCode;
+
+public class SourceMapTest {
+
+    private static final String SOURCE = "// Main.vm\n" +
+            "function Main.a 0\npush constant 1\n\nreturn\n" +
+            "function Main.b 0\ncall Main.a 0\nreturn\n";
+
+    private static SourceMap translate(String flags) {
+        return TestCode.translateProgram(SOURCE, "--source-map", flags)
+                .sourceMap();
+    }
+
+    @Test
+    public void testLines() {
+        for (String flags : new String[] {"", "--peephole",
+                "--compact-calls", "--cache-tos"}) {
+            SourceMap map = translate(flags);
+            int[] lines = new int[map.entries().size()];
+
+            for (int i = 0; i < lines.length; i++) {
+                lines[i] = map.entries().get(i).line();
+                if (i > 0) {
+                    assertTrue(map.entries().get(i - 1).address() <
+                            map.entries().get(i).address());
+                }
+            }
+
+            assertEquals(0, lines[0]);
+            assertEquals("(bootstrap)", map.entries().get(0).function());
+            assertEquals(SourceMap.NO_FILE, map.entries().get(0).file());
+            assertEquals("Main.vm", map.entries().get(1).file());
+            // function Main.a 0 writes no instructions.
+            assertEquals(3, lines[1]);
+            assertEquals("Main.a", map.entries().get(1).function());
+            assertEquals(5, lines[2]);
+            assertEquals("Main.b", map.entries().get(3).function());
+        }
+    }
+
+    @Test
+    public void testLookup() {
+        SourceMap map = new SourceMap();
+        map.add(0, "-", 0, "(bootstrap)");
+        map.add(10, "Main.vm", 2, "Main.a");
+        map.add(14, "Main.vm", VmCode.NO_LINE, "Main.a");
+        map.add(20, "Main.vm", 3, "Main.a");
+
+        assertEquals(3, map.entries().size());
+        assertEquals(0, map.lookup(9).line());
+        assertEquals(2, map.lookup(10).line());
+        assertEquals(2, map.lookup(19).line());
+        assertEquals(3, map.lookup(1000).line());
+        assertNull(new SourceMap().lookup(0));
+    }
+
+    @Test
+    public void testParse() {
+        SourceMap map = translate("--compact-calls");
+        SourceMap parsed = SourceMap.parse(map.toString());
+
+        assertEquals(map.entries(), parsed.entries());
+        assertEquals(map.toString(), parsed.toString());
+    }
+}
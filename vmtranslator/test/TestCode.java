@@ -0,0 +1,54 @@
+package vmtranslator.test;
+
+import vmtranslator.AsmWriter;
+import vmtranslator.CodeWriter;
+import vmtranslator.Parser;
+import vmtranslator.TranslatorOptions;
+import vmtranslator.VmCode;
+
+// Translating VM code in memory, for the tests. Each flags string
+// may hold several options separated by spaces, or none ("").
+public class TestCode {
+
+    public static TranslatorOptions options(String... flags) {
+        TranslatorOptions options = new TranslatorOptions();
+
+        for (String flag : flags) {
+            for (String option : flag.split(" ")) {
+                if (!option.isEmpty()) options.parse(option);
+            }
+        }
+
+        return options;
+    }
+
+    // source, as Main.vm, in a closed writer.
+    public static CodeWriter translate(String source, String... flags) {
+        return translate(source, false, flags);
+    }
+
+    // The same with the bootstrap first, for a program with Sys.init.
+    public static CodeWriter translateProgram(String source,
+            String... flags) {
+        return translate(source, true, flags);
+    }
+
+    private static CodeWriter translate(String source, boolean init,
+            String... flags) {
+        CodeWriter writer = new CodeWriter(new AsmWriter(), "Main",
+                options(flags));
+        if (init) writer.writeInit();
+        writer.writeCode(VmCode.decode(new Parser(source), "Main"));
+        writer.close();
+        return writer;
+    }
+
+    // writer's instructions and labels, without comments or
+    // indentation.
+    public static String instructions(CodeWriter writer) {
+        return new String(writer.toByteArray())
+                .replaceAll("(?m)^\\s*//.*\\n", "")
+                .replaceAll("(?m)^\\s*\\n", "")
+                .replaceAll("(?m)^\\s+", "");
+    }
+}
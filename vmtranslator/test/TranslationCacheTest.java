@@ -0,0 +1,158 @@
+package vmtranslator.test;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.*;
+
+import vmtranslator.TranslationCache;
+import vmtranslator.TranslatorOptions;
+import vmtranslator.VmTranslator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class TranslationCacheTest {
+
+    // A program directory, Prog, with Main.vm and Sys.vm.
+    private static Path program() throws IOException {
+        Path directory = Files.createTempDirectory("TranslationCacheTest")
+                .resolve("Prog");
+        Files.createDirectories(directory);
+        Files.writeString(directory.resolve("Sys.vm"),
+                "function Sys.init 0\ncall Main.main 0\npop temp 0\n" +
+                "label HALT\ngoto HALT\n");
+        Files.writeString(directory.resolve("Main.vm"),
+                "function Main.main 2\npush constant 7\npop local 1\n" +
+                "push local 1\npush static 0\nadd\nreturn\n");
+        return directory;
+    }
+
+    // Translates directory with flags, returning what it printed.
+    private static String translate(Path directory, String... flags)
+            throws IOException {
+        TranslatorOptions options = new TranslatorOptions();
+        for (String flag : flags) options.parse(flag);
+
+        PrintStream out = System.out;
+        ByteArrayOutputStream printed = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(printed));
+
+        try {
+            assertTrue(VmTranslator.translate(directory.toString(),
+                    options));
+        } finally {
+            System.setOut(out);
+        }
+
+        return printed.toString();
+    }
+
+    private static String output(Path directory) throws IOException {
+        return Files.readString(directory.resolve("Prog.asm"));
+    }
+
+    @Test
+    public void testReuse() throws IOException {
+        Path directory = program();
+        translate(directory);
+        String plain = output(directory);
+
+        assertTrue(translate(directory, "--cache").contains(
+                "0 files reused, 2 translated"));
+        assertEquals(plain, output(directory));
+        assertTrue(translate(directory, "--cache").contains(
+                "2 files reused, 0 translated"));
+        assertEquals(plain, output(directory));
+
+        // Only the changed file is translated again.
+        Files.writeString(directory.resolve("Main.vm"),
+                "function Main.main 0\npush constant 8\nreturn\n");
+        translate(directory);
+        plain = output(directory);
+        assertTrue(translate(directory, "--cache").contains(
+                "1 files reused, 1 translated"));
+        assertEquals(plain, output(directory));
+    }
+
+    @Test
+    public void testKey() throws IOException {
+        Path file = program().resolve("Main.vm");
+        TranslatorOptions plain = new TranslatorOptions();
+        TranslatorOptions peephole = new TranslatorOptions();
+        peephole.parse("--peephole");
+
+        TranslationCache cache = new TranslationCache(
+                file.resolveSibling(".vmcache"), "old translator");
+        TranslationCache newer = new TranslationCache(
+                file.resolveSibling(".vmcache"), "new translator");
+
+        String key = cache.key(file, plain, "");
+        assertEquals(key, cache.key(file, plain, ""));
+        assertNotEquals(key, cache.key(file, peephole, ""));
+        assertNotEquals(key, cache.key(file, plain, "Main.main"));
+        assertNotEquals(key, newer.key(file, plain, ""));
+
+        cache.put(key, new TranslationCache.Entry("@0\n".getBytes(),
+                null, null));
+        assertNotNull(cache.get(key, plain));
+        assertNull(newer.get(newer.key(file, plain, ""), plain));
+        assertEquals(1, cache.hits());
+        assertEquals(1, newer.misses());
+
+        assertEquals(TranslationCache.fingerprint(),
+                TranslationCache.fingerprint());
+        assertEquals(64, TranslationCache.fingerprint().length());
+    }
+
+    // Each entry keeps its own source map and profile, so they come
+    // out the same as without the cache.
+    @Test
+    public void testSourceMapAndProfile() throws IOException {
+        Path directory = program();
+        translate(directory, "--source-map", "--profile");
+        String map = Files.readString(directory.resolve("Prog.map"));
+        String json = Files.readString(directory.resolve("Prog.rom.json"));
+
+        // An entry without them doesn't count.
+        translate(directory, "--cache");
+        assertTrue(translate(directory, "--cache", "--source-map",
+                "--profile").contains("0 files reused, 2 translated"));
+        assertTrue(translate(directory, "--cache", "--source-map",
+                "--profile").contains("2 files reused, 0 translated"));
+        assertEquals(map, Files.readString(directory.resolve("Prog.map")));
+        assertEquals(json, Files.readString(
+                directory.resolve("Prog.rom.json")));
+    }
+
+    // Statics and labels are named after the file, so identical files
+    // under two names don't share an entry.
+    @Test
+    public void testSameContents() throws IOException {
+        Path directory = Files.createTempDirectory("TranslationCacheTest")
+                .resolve("Prog");
+        Files.createDirectories(directory);
+        for (String name : new String[] {"A.vm", "B.vm"}) {
+            Files.writeString(directory.resolve(name),
+                    "push static 0\npush constant 1\neq\npop static 1\n");
+        }
+
+        TranslationCache cache = new TranslationCache(
+                directory.resolve(".vmcache"));
+        TranslatorOptions options = new TranslatorOptions();
+        assertNotEquals(cache.key(directory.resolve("A.vm"), options, ""),
+                cache.key(directory.resolve("B.vm"), options, ""));
+
+        translate(directory);
+        String plain = output(directory);
+        assertTrue(plain.contains("@B.0"));
+
+        assertTrue(translate(directory, "--cache").contains(
+                "0 files reused, 2 translated"));
+        assertEquals(plain, output(directory));
+        assertTrue(translate(directory, "--cache").contains(
+                "2 files reused, 0 translated"));
+        assertEquals(plain, output(directory));
+    }
+}
@@ -0,0 +1,37 @@
+package vmtranslator.test;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.*;
+
+import vmtranslator.Opcode;
+import vmtranslator.Parser;
+import vmtranslator.Segment;
+import vmtranslator.VmCode;
+
+public class VmCodeTest {
+
+    @Test
+    public void testDecode() {
+        VmCode code = VmCode.decode(new Parser("function Main.f 2\n" +
+                "push local 1\nlabel LOOP\nlt\nif-goto LOOP\n" +
+                "call Main.f 1\nreturn"), "Main");
+
+        assertEquals("Main", code.name());
+        assertEquals(7, code.size());
+
+        assertEquals(Opcode.FUNCTION, code.opcode(0));
+        assertEquals("Main.f", code.symbol(0));
+        assertEquals(2, code.arg(0));
+
+        assertEquals(Opcode.PUSH, code.opcode(1));
+        assertEquals(Segment.LOCAL, code.segment(1));
+        assertEquals(1, code.arg(1));
+        assertEquals(VmCode.NO_SYMBOL, code.symbolId(1));
+
+        assertEquals(Opcode.LT, code.opcode(3));
+        assertEquals(Opcode.IF_GOTO, code.opcode(4));
+        assertEquals(code.symbolId(2), code.symbolId(4));
+        assertEquals(code.symbolId(0), code.symbolId(5));
+        assertEquals(Opcode.RETURN, code.opcode(6));
+    }
+}
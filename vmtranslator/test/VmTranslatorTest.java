@@ -0,0 +1,137 @@
+package vmtranslator.test;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.*;
+
+import vmtranslator.TranslatorOptions;
+import vmtranslator.VmTranslator;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+public class VmTranslatorTest {
+
+    // Flag sets to compare --parallel under.
+    private static final String[] FLAGS = {"",
+            "--peephole --cache-tos --fuse-branches",
+            "--compact-calls --source-map --profile"};
+
+    // A program directory, Prog, with several files that all generate
+    // labels and use statics.
+    private static Path program() throws IOException {
+        Path directory = Files.createTempDirectory("VmTranslatorTest")
+                .resolve("Prog");
+        Files.createDirectories(directory);
+        Files.writeString(directory.resolve("Sys.vm"),
+                "function Sys.init 0\ncall Main.main 0\npop temp 0\n" +
+                "label HALT\ngoto HALT\n");
+
+        for (String name : new String[] {"Main", "Math", "List", "Util"}) {
+            Files.writeString(directory.resolve(name + ".vm"),
+                    "function " + name + ".main 1\npush static 0\n" +
+                    "push constant 3\nlt\nif-goto DONE\n" +
+                    "push argument 0\npush constant 1\neq\n" +
+                    "pop static 1\ncall " + name + ".main 0\n" +
+                    "pop local 0\nlabel DONE\npush local 0\nreturn\n");
+        }
+
+        return directory;
+    }
+
+    // Prog.asm, and Prog.map if there is one, after translating
+    // directory with flags.
+    private static String translate(Path directory, String flags,
+            boolean parallel) throws IOException {
+        TranslatorOptions options = TestCode.options(flags);
+        options.parallel = parallel;
+
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(new ByteArrayOutputStream()));
+
+        try {
+            assertTrue(VmTranslator.translate(directory.toString(),
+                    options));
+        } finally {
+            System.setOut(out);
+        }
+
+        Path map = directory.resolve("Prog.map");
+        return Files.readString(directory.resolve("Prog.asm")) +
+                (Files.exists(map) ? Files.readString(map) : "");
+    }
+
+    // What translating source from a stream writes, or null if it
+    // fails.
+    private static String stream(String source, String... flags) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PrintStream err = System.err;
+        System.setErr(new PrintStream(new ByteArrayOutputStream()));
+
+        try {
+            return VmTranslator.translate(new ByteArrayInputStream(
+                    source.getBytes()), out, TestCode.options(flags)) ?
+                    out.toString() : null;
+        } finally {
+            System.setErr(err);
+        }
+    }
+
+    // --parallel gives the same bytes as a sequential translation, on
+    // every run.
+    @Test
+    public void testParallel() throws IOException {
+        for (String flags : FLAGS) {
+            Path directory = program();
+            String sequential = translate(directory, flags, false);
+
+            for (int run = 0; run < 5; run++) {
+                assertEquals(sequential, translate(directory, flags, true),
+                        flags);
+                assertEquals(sequential, translate(directory, flags,
+                        false), flags);
+            }
+        }
+    }
+
+    // Streamed code is written a function at a time, and a long
+    // function in chunks that never split a compare-and-branch run.
+    // Statics are named after the function's class, or Stdin before
+    // any function.
+    @Test
+    public void testStream() {
+        String source = "push constant 1\npop static 0\n" +
+                "function Main.main 0\n" +
+                "push static 1\npush constant 1\neq\nnot\nif-goto L\n"
+                .repeat(1000) +
+                "label L\nfunction Math.f 0\npush static 2\nreturn\n";
+
+        String fused = stream(source, "--fuse-branches");
+        assertEquals(1000, fused.split("D;JNE", -1).length - 1);
+        assertFalse(fused.contains("END_"));
+        assertTrue(fused.contains("@Stdin.0\n"));
+        assertTrue(fused.contains("@Main.1\n"));
+        assertTrue(fused.contains("@Math.2\n"));
+
+        // Generated labels stay unique across chunks.
+        String[] labels = stream(source).lines()
+                .filter(line -> line.startsWith("(")).toArray(String[]::new);
+        assertTrue(labels.length > 1000);
+        assertEquals(labels.length, Arrays.stream(labels).distinct()
+                .count());
+    }
+
+    // A program too big for ROM fails only with --strict-rom, and the
+    // caller decides whether to exit.
+    @Test
+    public void testStreamRomSize() {
+        String big = "push constant 2\n".repeat(6000);
+        assertNotNull(stream(big));
+        assertNull(stream(big, "--strict-rom"));
+        assertNotNull(stream("push constant 2\n", "--strict-rom"));
+    }
+}
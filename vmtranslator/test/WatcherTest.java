@@ -0,0 +1,125 @@
+package vmtranslator.test;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.*;
+
+import vmtranslator.VmTranslator;
+import vmtranslator.Watcher;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+
+public class WatcherTest {
+
+    private static final String SYS = "function Sys.init 0\n" +
+            "call Main.main 0\npop temp 0\nlabel HALT\ngoto HALT\n";
+    private static final String MAIN = "function Main.main 1\n" +
+            "push constant 2\ncall Math.double 1\npop local 0\n" +
+            "push local 0\nreturn\n";
+    private static final String MATH = "function Math.double 0\n" +
+            "push argument 0\npush argument 0\nadd\nreturn\n";
+
+    private static Path program() throws IOException {
+        Path directory = Files.createTempDirectory("WatcherTest")
+                .resolve("Prog");
+        Files.createDirectories(directory);
+        Files.writeString(directory.resolve("Sys.vm"), SYS);
+        Files.writeString(directory.resolve("Main.vm"), MAIN);
+        Files.writeString(directory.resolve("Math.vm"), MATH);
+        return directory;
+    }
+
+    // A fresh translation, which --watch's output should match.
+    private static String translate(Path directory, String... flags)
+            throws IOException {
+        assertTrue(VmTranslator.translate(directory.toString(),
+                TestCode.options(flags)));
+        return Files.readString(directory.resolve("Prog.asm"));
+    }
+
+    private static Watcher watcher(Path directory, String... flags) {
+        return new Watcher(directory.toString(),
+                directory.resolve("Prog.asm").toString(),
+                TestCode.options(flags));
+    }
+
+    private static String output(Path directory) throws IOException {
+        return Files.readString(directory.resolve("Prog.asm"));
+    }
+
+    @Test
+    public void testRebuild() throws IOException {
+        Path directory = program();
+        Watcher watcher = watcher(directory);
+
+        assertEquals(3, watcher.rebuild(Set.of("Main.vm", "Math.vm",
+                "Sys.vm")));
+        assertEquals(translate(directory), output(directory));
+
+        // Only the changed file is translated.
+        Files.writeString(directory.resolve("Math.vm"),
+                MATH.replace("add", "sub"));
+        assertEquals(1, watcher.rebuild(Set.of("Math.vm")));
+        assertEquals(translate(directory), output(directory));
+
+        // A half-edited file leaves the output alone.
+        String before = output(directory);
+        Files.writeString(directory.resolve("Main.vm"), "push frob 1\n");
+        assertEquals(-1, watcher.rebuild(Set.of("Main.vm")));
+        assertEquals(before, output(directory));
+
+        Files.writeString(directory.resolve("Main.vm"), MAIN);
+        assertEquals(1, watcher.rebuild(Set.of("Main.vm")));
+        assertEquals(translate(directory), output(directory));
+
+        // A deleted file is left out.
+        Files.delete(directory.resolve("Math.vm"));
+        assertEquals(0, watcher.rebuild(Set.of("Math.vm")));
+        assertEquals(translate(directory), output(directory));
+    }
+
+    // A file that doesn't parse keeps the output from being written,
+    // even when other files change, until it's fixed or deleted.
+    @Test
+    public void testBrokenFile() throws IOException {
+        Path directory = program();
+        Watcher watcher = watcher(directory);
+        watcher.rebuild(Set.of("Main.vm", "Math.vm", "Sys.vm"));
+        String before = output(directory);
+
+        Files.writeString(directory.resolve("Main.vm"), "push frob 1\n");
+        assertEquals(-1, watcher.rebuild(Set.of("Main.vm")));
+        Files.writeString(directory.resolve("Math.vm"),
+                MATH.replace("add", "sub"));
+        assertEquals(-1, watcher.rebuild(Set.of("Math.vm")));
+        assertEquals(before, output(directory));
+
+        Files.writeString(directory.resolve("Main.vm"), MAIN);
+        assertEquals(2, watcher.rebuild(Set.of("Main.vm")));
+        assertEquals(translate(directory), output(directory));
+
+        Files.writeString(directory.resolve("Main.vm"), "push frob 1\n");
+        assertEquals(-1, watcher.rebuild(Set.of("Main.vm")));
+        Files.delete(directory.resolve("Main.vm"));
+        assertEquals(0, watcher.rebuild(Set.of("Main.vm")));
+        assertEquals(translate(directory), output(directory));
+    }
+
+    // Whole-program mode looks at every file, so they're all
+    // translated again.
+    @Test
+    public void testWholeProgram() throws IOException {
+        Path directory = program();
+        Watcher watcher = watcher(directory, "--whole-program");
+
+        assertEquals(3, watcher.rebuild(Set.of("Main.vm", "Math.vm",
+                "Sys.vm")));
+        Files.writeString(directory.resolve("Main.vm"),
+                "function Main.main 0\npush constant 2\nreturn\n");
+        assertEquals(3, watcher.rebuild(Set.of("Main.vm")));
+        assertEquals(translate(directory, "--whole-program"),
+                output(directory));
+    }
+}